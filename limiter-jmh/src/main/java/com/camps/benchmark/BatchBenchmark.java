@@ -0,0 +1,114 @@
+package com.camps.benchmark;
+
+import com.camps.FixedLimiter;
+import com.camps.ManualTimeSource;
+import com.camps.RateLimiter;
+import com.camps.SlidingLimiter;
+import com.camps.TokenBucketLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 逐个放行与批量放行的单个请求耗时对比
+ * <p>
+ * 每次调用处理一批 {@value #BATCH} 个请求，结果为平均到每个请求的耗时：
+ * perEvent 逐个调用 tryAcquire，allowBatch 一次放行整批，allowEach 一次判断整批代价为 1~4 的请求。
+ * 使用手动时钟，每批开始前时钟前进一个窗口，整批请求都在放行路径上，而不是在额度耗尽后全部被限流。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+    private static final int BATCH = 1024;
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Param({"FIXED", "SLIDING", "SLIDING_COUNTER", "TOKEN_BUCKET"})
+    public String engine;
+
+    private final ManualTimeSource clock = new ManualTimeSource();
+    private RateLimiter limiter;
+    private final long[] costs = new long[BATCH];
+    private final BitSet admitted = new BitSet(BATCH);
+
+    @Setup
+    public void setUp() {
+        // 窗口 1ms 内最多 4096 个许可，或每 1ms 生成 4096 个令牌，每批最多消耗 4096 个
+        Duration window = Duration.ofNanos(WINDOW_NANOS);
+        int max = 4 * BATCH;
+        switch (engine) {
+            case "FIXED":
+                limiter = new FixedLimiter(window, max, clock);
+                break;
+            case "SLIDING":
+                limiter = new SlidingLimiter(window, max, clock);
+                break;
+            case "SLIDING_COUNTER":
+                limiter = new SlidingLimiter(window, max, SlidingLimiter.Mode.COUNTER, clock);
+                break;
+            case "TOKEN_BUCKET":
+                limiter = new TokenBucketLimiter(max * 1000, max, clock);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown engine: " + engine);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < BATCH; i++) {
+            costs[i] = 1 + random.nextInt(4);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int perEvent() {
+        clock.advanceNanos(WINDOW_NANOS);
+        int count = 0;
+        for (int i = 0; i < BATCH; i++) {
+            if (limiter.tryAcquire()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int allowBatch() {
+        clock.advanceNanos(WINDOW_NANOS);
+        return limiter.allowBatch(BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int allowEach() {
+        clock.advanceNanos(WINDOW_NANOS);
+        return limiter.allowEach(costs, admitted);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(BatchBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
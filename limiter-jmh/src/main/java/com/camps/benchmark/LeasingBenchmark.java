@@ -0,0 +1,86 @@
+package com.camps.benchmark;
+
+import com.camps.KeyedRateLimiter;
+import com.camps.TokenBucketLimiter;
+import com.camps.distributed.LeasingRateLimiter;
+import com.camps.distributed.LimiterClient;
+import com.camps.distributed.LimiterServer;
+import com.camps.distributed.RemoteRateLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 批量租借许可与每次请求访问服务端的判断延迟分布
+ * <p>
+ * 服务端和客户端在同一个进程内，通过 127.0.0.1 通信，服务端的令牌桶几乎不限流：
+ * <ul>
+ *     <li>leasing：{@link LeasingRateLimiter#tryAcquire()}，多数请求只在本地扣减，租借在后台进行；</li>
+ *     <li>remote：{@link RemoteRateLimiter#tryAcquire()}，每个请求一次网络往返。</li>
+ * </ul>
+ * 结果为每次判断耗时的分布，关注 p99 与 p99.9。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LeasingBenchmark {
+    private LimiterServer server;
+    private LimiterClient client;
+    private LeasingRateLimiter leasing;
+    private RemoteRateLimiter remote;
+
+    @Setup
+    public void setUp() throws IOException {
+        KeyedRateLimiter<String> hosted = new KeyedRateLimiter<>(
+                key -> new TokenBucketLimiter(Integer.MAX_VALUE, Integer.MAX_VALUE), Duration.ofHours(1), 16);
+        server = new LimiterServer(hosted);
+        client = new LimiterClient(server.address());
+        leasing = client.leasingLimiter("leasing", 1_000_000, Duration.ofMillis(100));
+        remote = client.limiter("remote");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        leasing.close();
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean leasing() {
+        return leasing.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean remote() {
+        return remote.tryAcquire();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LeasingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,116 @@
+package com.camps.benchmark;
+
+import com.camps.FixedLimiter;
+import com.camps.LeakyBucketLimiter;
+import com.camps.LockFreeTokenBucketLimiter;
+import com.camps.RateLimiter;
+import com.camps.SlidingLimiter;
+import com.camps.StripedFixedLimiter;
+import com.camps.TokenBucketLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 各限流算法 tryAcquire() 的吞吐量、平均耗时和耗时分布
+ * <p>
+ * 所有线程共享同一个限流器，分别在 1、4、16、64 个线程下测试；
+ * ADMIT 为几乎全部放行的阈值，DENY 为几乎全部限流的阈值。配合 -prof gc 查看每次调用分配的字节数（B/op）。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LimiterBenchmark {
+
+    @Param({"FIXED", "SLIDING", "TOKEN_BUCKET", "LEAKY_BUCKET",
+            "SLIDING_COUNTER", "STRIPED_FIXED", "LOCK_FREE_TOKEN_BUCKET"})
+    public String engine;
+
+    @Param({"ADMIT", "DENY"})
+    public String regime;
+
+    private RateLimiter limiter;
+
+    @Setup
+    public void setUp() {
+        boolean admit = "ADMIT".equals(regime);
+        limiter = create(engine, admit);
+    }
+
+    static RateLimiter create(String engine, boolean admit) {
+        // ADMIT：窗口 10ms 内允许 100 万个请求，或每秒约 21 亿个令牌，压测期间不会触发限流
+        // DENY：1 小时只允许 1 个请求，或每秒 1 个令牌且桶容量为 1
+        Duration window = admit ? Duration.ofMillis(10) : Duration.ofHours(1);
+        int maxRequests = admit ? 1_000_000 : 1;
+        int rate = admit ? Integer.MAX_VALUE : 1;
+        switch (engine) {
+            case "FIXED":
+                return new FixedLimiter(window, maxRequests);
+            case "SLIDING":
+                return new SlidingLimiter(window, maxRequests);
+            case "SLIDING_COUNTER":
+                return new SlidingLimiter(window, maxRequests, SlidingLimiter.Mode.COUNTER);
+            case "STRIPED_FIXED":
+                return new StripedFixedLimiter(window, maxRequests);
+            case "TOKEN_BUCKET":
+                return new TokenBucketLimiter(rate, maxRequests);
+            case "LOCK_FREE_TOKEN_BUCKET":
+                return new LockFreeTokenBucketLimiter(rate, maxRequests);
+            case "LEAKY_BUCKET":
+                return new LeakyBucketLimiter(rate, maxRequests);
+            default:
+                throw new IllegalArgumentException("unknown engine: " + engine);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean threads01() {
+        return limiter.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean threads04() {
+        return limiter.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean threads16() {
+        return limiter.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean threads64() {
+        return limiter.tryAcquire();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LimiterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,107 @@
+package com.camps.benchmark;
+
+import com.camps.KeyedRateLimiter;
+import com.camps.TokenBucketLimiter;
+import com.camps.distributed.LimiterClient;
+import com.camps.distributed.LimiterServer;
+import com.camps.distributed.RemoteRateLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 集中式限流服务在本机回环网络上的判断吞吐量
+ * <p>
+ * 服务端和客户端在同一个进程内，通过 127.0.0.1 通信，服务端每个 key 一个几乎不限流的令牌桶：
+ * <ul>
+ *     <li>pipelined：单线程一次提交 {@value #BATCH} 个异步请求再等待全部完成，请求被合并成少数几帧；</li>
+ *     <li>pipelinedTokenBucket：同上，但使用参数随命令传入的令牌桶命令，服务端在事件循环中完成读-改-写；</li>
+ *     <li>blocking16：16 个线程各自同步调用 {@link RemoteRateLimiter#tryAcquire()}，同时发出的请求被合并到同一帧。</li>
+ * </ul>
+ * 结果为每秒完成的判断次数。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RemoteLimiterBenchmark {
+    private static final int BATCH = 1024;
+    private static final int KEYS = 64;
+
+    private LimiterServer server;
+    private LimiterClient client;
+    private final String[] keys = new String[KEYS];
+    private final RemoteRateLimiter[] limiters = new RemoteRateLimiter[KEYS];
+    private final CompletableFuture<?>[] futures = new CompletableFuture<?>[BATCH];
+
+    @Setup
+    public void setUp() throws IOException {
+        KeyedRateLimiter<String> hosted = new KeyedRateLimiter<>(
+                key -> new TokenBucketLimiter(Integer.MAX_VALUE, Integer.MAX_VALUE), Duration.ofHours(1), KEYS * 2);
+        server = new LimiterServer(hosted);
+        client = new LimiterClient(server.address());
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key-" + i;
+            limiters[i] = client.limiter(keys[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH)
+    public void pipelined() {
+        for (int i = 0; i < BATCH; i++) {
+            futures[i] = client.tryAcquireAsync(keys[i & (KEYS - 1)], 1);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH)
+    public void pipelinedTokenBucket() {
+        for (int i = 0; i < BATCH; i++) {
+            futures[i] = client.tokenBucketAcquireAsync(keys[i & (KEYS - 1)], 1, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean blocking16() {
+        return limiters[(int) (Thread.currentThread().getId() & (KEYS - 1))].tryAcquire();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RemoteLimiterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,94 @@
+package com.camps.benchmark;
+
+import com.camps.LeakyBucketLimiter;
+import com.camps.RateLimiter;
+import com.camps.TokenBucketLimiter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 令牌桶和漏桶在持续超载下的实际放行速率
+ * <p>
+ * 单线程不停地请求，请求速率远高于配置速率。结果中 admitted 为每秒放行的请求数，应等于配置的 rate；
+ * rejected 为每秒被限流的请求数。每轮迭代使用新的限流器，漏桶先装满，排除初始突发的影响。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(1)
+public class SustainedRateBenchmark {
+
+    @Param({"TOKEN_BUCKET", "LEAKY_BUCKET"})
+    public String engine;
+
+    @Param({"1000", "100000", "1000000"})
+    public int rate;
+
+    private RateLimiter limiter;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long admitted; // 放行的请求数
+        public long rejected; // 被限流的请求数
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            admitted = 0;
+            rejected = 0;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        // 桶容量为 100ms 的令牌，避免 GC 等停顿期间令牌桶装满丢弃令牌
+        int capacity = Math.max(10, rate / 10);
+        switch (engine) {
+            case "TOKEN_BUCKET":
+                limiter = new TokenBucketLimiter(rate, capacity);
+                break;
+            case "LEAKY_BUCKET":
+                limiter = new LeakyBucketLimiter(rate, capacity);
+                limiter.tryAcquire(capacity);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown engine: " + engine);
+        }
+    }
+
+    @Benchmark
+    public void sustained(Counters counters) {
+        if (limiter.tryAcquire()) {
+            counters.admitted++;
+        } else {
+            counters.rejected++;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SustainedRateBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,111 @@
+package com.camps.benchmark;
+
+import com.camps.HashedWheelTimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 大量等待中的定时任务下，哈希时间轮与 {@link ScheduledThreadPoolExecutor} 提交和取消一个任务的开销
+ * <p>
+ * 启动时先提交 pending 个 1 小时内随机到期的任务，压测期间不会到期；每次调用提交一个同样随机到期的任务并立即取消，
+ * 等待任务数保持不变。ScheduledThreadPoolExecutor 开启 removeOnCancelPolicy，取消时从二叉堆中移除，
+ * 与时间轮一样不会堆积已取消的任务。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TimerBenchmark {
+    private static final long MAX_DELAY_NANOS = TimeUnit.HOURS.toNanos(1);
+    private static final Runnable NOOP = () -> {
+    };
+
+    @Param({"WHEEL", "SCHEDULED_EXECUTOR"})
+    public String timer;
+
+    @Param({"1000", "1000000"})
+    public int pending;
+
+    private HashedWheelTimer wheel;
+    private ScheduledThreadPoolExecutor executor;
+
+    @Setup
+    public void setUp() {
+        if ("WHEEL".equals(timer)) {
+            wheel = new HashedWheelTimer(Duration.ofMillis(1), 512);
+        } else {
+            executor = new ScheduledThreadPoolExecutor(1);
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        for (int i = 0; i < pending; i++) {
+            schedule();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (wheel != null) {
+            wheel.close();
+        } else {
+            executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean scheduleAndCancel01() {
+        return cancel(schedule());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean scheduleAndCancel04() {
+        return cancel(schedule());
+    }
+
+    private Object schedule() {
+        long delay = ThreadLocalRandom.current().nextLong(MAX_DELAY_NANOS);
+        if (wheel != null) {
+            return wheel.schedule(NOOP, delay, TimeUnit.NANOSECONDS);
+        }
+        return executor.schedule(NOOP, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private static boolean cancel(Object handle) {
+        if (handle instanceof HashedWheelTimer.Timeout) {
+            return ((HashedWheelTimer.Timeout) handle).cancel();
+        }
+        return ((ScheduledFuture<?>) handle).cancel(false);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TimerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,101 @@
+package com.camps.benchmark;
+
+import com.camps.RateLimiter;
+import com.camps.SlidingLimiter;
+import com.camps.TokenBucketLimiter;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 虚拟线程与平台线程通过限流器的对比，需要 Java 21
+ * <p>
+ * 一次提交 n 个请求，每个请求在自己的线程中获取 1 个许可后结束：
+ * <ul>
+ *     <li>VIRTUAL：每个请求一个虚拟线程，共 n 个；</li>
+ *     <li>PLATFORM：固定大小的平台线程池，请求在线程池队列中排队。</li>
+ * </ul>
+ * TokenBucketLimiter 使用阻塞的 acquire；SlidingLimiter 没有阻塞接口，被限流时睡眠 1ms 后重试。
+ * 统计总耗时、实际放行速率、从提交到获取许可的延迟分布，以及载体线程（平台线程）利用率，
+ * 即进程 CPU 时间 / (耗时 × CPU 核数)。
+ * <pre>
+ *     mvn install
+ *     mvn -f limiter-jmh/pom.xml package
+ *     java -cp limiter-jmh/target/benchmarks.jar com.camps.benchmark.VirtualThreadHarness [n] [rate]
+ * </pre>
+ */
+public class VirtualThreadHarness {
+    private static final int PLATFORM_THREADS = 256;
+
+    private interface Acquirer {
+        void acquire(RateLimiter limiter) throws InterruptedException;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        // 先用 1/10 的请求预热，不输出结果
+        runAll(Math.max(1, n / 10), rate, false);
+        System.out.printf("=================虚拟线程 %,d 个请求，每秒 %,d 个许可=================\n", n, rate);
+        runAll(n, rate, true);
+        System.out.println("------------------------------------------");
+    }
+
+    private static void runAll(int n, int rate, boolean print) throws InterruptedException {
+        for (boolean virtual : new boolean[]{true, false}) {
+            // 令牌桶容量为 10ms 的令牌
+            run("TokenBucketLimiter", new TokenBucketLimiter(rate, Math.max(1, rate / 100)),
+                    limiter -> ((TokenBucketLimiter) limiter).acquire(1), virtual, n, rate, print);
+            // 滑动窗口 10ms，每个窗口 rate / 100 个请求
+            run("SlidingLimiter", new SlidingLimiter(Duration.ofMillis(10), Math.max(1, rate / 100)),
+                    limiter -> {
+                        while (!limiter.tryAcquire()) {
+                            Thread.sleep(1);
+                        }
+                    }, virtual, n, rate, print);
+        }
+    }
+
+    private static void run(String name, RateLimiter limiter, Acquirer acquirer, boolean virtual, int n, int rate,
+                            boolean print) throws InterruptedException {
+        long[] latencies = new long[n];
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpuBegin = os.getProcessCpuTime();
+        long begin = System.nanoTime();
+        try (ExecutorService executor = virtual ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(PLATFORM_THREADS)) {
+            for (int i = 0; i < n; i++) {
+                int index = i;
+                long submitted = System.nanoTime();
+                executor.execute(() -> {
+                    try {
+                        acquirer.acquire(limiter);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    latencies[index] = System.nanoTime() - submitted;
+                });
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        long cpu = os.getProcessCpuTime() - cpuBegin;
+        if (!print) {
+            return;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        Arrays.sort(latencies);
+        System.out.printf("%-18s %-8s 线程 %,9d  耗时 %,7d ms  放行 %,12.0f/s (配置 %,d/s)  延迟 p50 %,7.1f ms  p99 %,7.1f ms  "
+                        + "max %,7.1f ms  载体线程利用率 %5.1f%%\n",
+                name, virtual ? "VIRTUAL" : "PLATFORM", virtual ? n : PLATFORM_THREADS,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), n * 1e9 / elapsed, rate,
+                latencies[n / 2] / 1e6, latencies[(int) (n * 0.99)] / 1e6, latencies[n - 1] / 1e6,
+                cpu * 100.0 / elapsed / cores);
+    }
+}
@@ -0,0 +1,31 @@
+package com.camps;
+
+import java.util.BitSet;
+
+
+/**
+ * 批量放行的公共逻辑，调用方持有限流器的锁，已经算出本批可用的许可数
+ */
+final class Batches {
+    private Batches() {
+    }
+
+    /**
+     * 按顺序逐个判断，剩余许可够就放行并扣除，不够就跳过
+     *
+     * @param budget 本批可用的许可数
+     * @param out    先被清空，放行的请求对应的位被置为 1
+     * @return 放行的请求消耗的许可总数
+     */
+    static long admitEach(long[] costs, BitSet out, long budget) {
+        out.clear();
+        long remaining = budget;
+        for (int i = 0; i < costs.length; i++) {
+            if (costs[i] <= remaining) {
+                remaining -= costs[i];
+                out.set(i);
+            }
+        }
+        return budget - remaining;
+    }
+}
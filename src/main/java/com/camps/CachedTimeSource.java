@@ -0,0 +1,50 @@
+package com.camps;
+
+import java.time.Duration;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * 粗粒度缓存时钟
+ * <p>
+ * 由一个后台守护线程按固定间隔刷新 {@link System#nanoTime()}，请求线程只读取一个 volatile 字段。
+ * 精度为刷新间隔，适用于窗口远大于刷新间隔、对时钟读取开销敏感的场景。
+ */
+public class CachedTimeSource implements TimeSource, AutoCloseable {
+    private final long tickNanos; // 刷新间隔，单位为纳秒
+    private final Thread ticker; // 刷新线程
+    private volatile long now; // 最近一次刷新得到的时间
+    private volatile boolean running = true;
+
+    public CachedTimeSource(Duration tick) {
+        if (tick.isNegative() || tick.isZero()) {
+            throw new IllegalArgumentException("tick must be positive: " + tick);
+        }
+        this.tickNanos = tick.toNanos();
+        this.now = System.nanoTime();
+        this.ticker = new Thread(this::tick, "cached-time-source");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    private void tick() {
+        while (running) {
+            LockSupport.parkNanos(this, tickNanos);
+            now = System.nanoTime();
+        }
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    /**
+     * 停止刷新线程，之后时间不再前进
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+}
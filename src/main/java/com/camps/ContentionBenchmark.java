@@ -0,0 +1,44 @@
+package com.camps;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * 多线程竞争压测：所有线程同时对同一个限流器调用 tryAcquire()，统计固定时间内的总调用次数
+ */
+final class ContentionBenchmark {
+    private ContentionBenchmark() {
+    }
+
+    static double opsPerSecond(int threads, long millis, RateLimiter limiter) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long count = 0;
+                while (System.nanoTime() < deadline) {
+                    limiter.tryAcquire();
+                    count++;
+                }
+                ops.add(count);
+                done.countDown();
+            });
+            worker.setDaemon(true);
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return ops.sum() * 1_000_000_000.0 / (System.nanoTime() - begin);
+    }
+}
@@ -3,8 +3,8 @@ package com.camps;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -12,48 +12,166 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 固定窗口限流
+ * <p>
+ * 批量处理时使用 {@link #allowBatch(int)} 和 {@link #allowEach(long[], BitSet)}，整批请求只加锁和读时钟一次。
  */
-public class FixedLimiter {
+public class FixedLimiter implements RateLimiter {
     private static final String FORMAT_TIME = "yyyy-MM-dd HH:mm:ss";
-    private final long windowSize; // 窗口大小，单位为毫秒
+    private final long windowSize; // 窗口大小，单位为纳秒
     private final int maxRequests; // 最大请求数
+    private final TimeSource timeSource; // 时钟
     private int requests; // 当前窗口内的请求数
-    private LocalDateTime lastReset; // 上次窗口重置时间
+    private long lastReset; // 上次窗口重置时间
+    private long resets; // 窗口重置的次数，即当前窗口的编号
     private final Lock resetMutex; // 重置锁
 
     public FixedLimiter(Duration windowSize, int maxRequests) {
-        this.windowSize = windowSize.toMillis();
+        this(windowSize, maxRequests, TimeSource.SYSTEM);
+    }
+
+    public FixedLimiter(Duration windowSize, int maxRequests, TimeSource timeSource) {
+        this.windowSize = windowSize.toNanos();
         this.maxRequests = maxRequests;
+        this.timeSource = timeSource;
         this.requests = 0;
-        this.lastReset = LocalDateTime.now();
+        this.lastReset = timeSource.nanoTime();
         this.resetMutex = new ReentrantLock();
     }
 
     public boolean allowRequest() {
+        return tryAcquire();
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        Preconditions.checkPermits(permits);
         resetMutex.lock();
         try {
-            LocalDateTime now = LocalDateTime.now();
-            // 检查是否需要重置窗口
-            if (Duration.between(lastReset, now).toMillis() >= windowSize) {
-                requests = 0;
-                lastReset = now;
-            }
+            resetIfExpired(timeSource.nanoTime());
             // 检查请求数是否超过阈值
-            if (requests >= maxRequests) {
+            if (requests > maxRequests - permits) {
                 return false; // 限流
             }
-            requests++;
+            requests += permits;
             return true;
         } finally {
             resetMutex.unlock();
         }
     }
 
+    @Override
+    public int allowBatch(int n) {
+        Preconditions.checkBatchSize(n);
+        // 空批次不读时钟：窗口在到期后的第一个请求到来时才重置，与逐个调用 tryAcquire 一致
+        if (n == 0) {
+            return 0;
+        }
+        resetMutex.lock();
+        try {
+            resetIfExpired(timeSource.nanoTime());
+            int admitted = Math.min(n, Math.max(0, maxRequests - requests));
+            requests += admitted;
+            return admitted;
+        } finally {
+            resetMutex.unlock();
+        }
+    }
+
+    @Override
+    public int allowEach(long[] costs, BitSet out) {
+        Preconditions.checkCosts(costs);
+        if (costs.length == 0) {
+            out.clear();
+            return 0;
+        }
+        resetMutex.lock();
+        try {
+            resetIfExpired(timeSource.nanoTime());
+            requests += (int) Batches.admitEach(costs, out, Math.max(0, maxRequests - requests));
+            return out.cardinality();
+        } finally {
+            resetMutex.unlock();
+        }
+    }
+
+    @Override
+    public boolean supportsRefund() {
+        return true;
+    }
+
+    /**
+     * 归还在当前窗口内获取的许可，从当前窗口的请求数中扣除；许可可能在之前的窗口获取时使用 {@link #refund(int, long)}
+     */
+    @Override
+    public void refund(int permits) {
+        Preconditions.checkPermits(permits);
+        resetMutex.lock();
+        try {
+            resetIfExpired(timeSource.nanoTime());
+            requests = Math.max(0, requests - permits);
+        } finally {
+            resetMutex.unlock();
+        }
+    }
+
+    /**
+     * 当前窗口的编号；窗口已到期但还没有请求到来时，返回下一个请求将重置出的窗口的编号
+     */
+    @Override
+    public long epoch() {
+        resetMutex.lock();
+        try {
+            return timeSource.nanoTime() - lastReset >= windowSize ? resets + 1 : resets;
+        } finally {
+            resetMutex.unlock();
+        }
+    }
+
+    /**
+     * 归还在编号为 epoch 的窗口内获取的许可，窗口已经重置时忽略
+     */
+    @Override
+    public void refund(int permits, long epoch) {
+        Preconditions.checkPermits(permits);
+        resetMutex.lock();
+        try {
+            resetIfExpired(timeSource.nanoTime());
+            if (epoch == resets) {
+                requests = Math.max(0, requests - permits);
+            }
+        } finally {
+            resetMutex.unlock();
+        }
+    }
+
+    // 检查是否需要重置窗口
+    private void resetIfExpired(long now) {
+        if (now - lastReset >= windowSize) {
+            requests = 0;
+            lastReset = now;
+            resets++;
+        }
+    }
+
+    @Override
+    public int availablePermits() {
+        resetMutex.lock();
+        try {
+            // 窗口已过期，下一个请求到来时会重置窗口
+            if (timeSource.nanoTime() - lastReset >= windowSize) {
+                return maxRequests;
+            }
+            return maxRequests - requests;
+        } finally {
+            resetMutex.unlock();
+        }
+    }
+
     public static void main(String[] args) {
         System.out.println(System.currentTimeMillis() / 1000);
         FixedLimiter limiter = new FixedLimiter(Duration.ofSeconds(1), 3); // 每秒最多允许3个请求
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern(FORMAT_TIME);
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+        CountDownLatch done = new CountDownLatch(20);
 
         Runnable task = () -> {
             String now = LocalDateTime.now().format(formatter);
@@ -62,19 +180,19 @@ public class FixedLimiter {
             } else {
                 System.out.println(now + " 请求被限流");
             }
+            done.countDown();
         };
 
         for (int i = 0; i < 20; i++) {
-            executor.schedule(task, i * 100, TimeUnit.MILLISECONDS);
+            HashedWheelTimer.shared().schedule(task, i * 100, TimeUnit.MILLISECONDS);
         }
 
-        executor.shutdown();
         try {
-            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                executor.shutdownNow();
+            if (!done.await(7, TimeUnit.SECONDS)) {
+                System.out.println("等待请求执行超时");
             }
         } catch (InterruptedException e) {
-            executor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 }
@@ -0,0 +1,271 @@
+package com.camps;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * 哈希时间轮定时器
+ * <p>
+ * 时间轮由 wheelSize 个槽位组成，每个槽位对应一格（tick），单个工作线程每一格前进一次，执行当前槽位中到期的任务。
+ * 延迟超过一圈的任务记录还需要转过的圈数，每转过一圈减一。
+ * <ul>
+ *     <li>提交任务只是放入无锁队列，工作线程在每一格开始时把队列中的任务放入对应的槽位，插入为 O(1)，没有锁竞争；</li>
+ *     <li>取消只是 CAS 修改任务状态并放入取消队列，工作线程从槽位的双向链表中摘除，同样为 O(1)；</li>
+ *     <li>每个等待中的任务只占一个链表节点，百万个等待任务只需几十 MB 内存和一个线程。</li>
+ * </ul>
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor} 的延迟队列是二叉堆，插入和取消为 O(log n)，
+ * 适合少量精确的定时任务；限流的延迟放行、整形等场景任务数量多、精度要求低，适合使用时间轮。
+ * <p>
+ * 任务最多延迟一格执行，不会提前执行；任务在工作线程中执行，不能阻塞，耗时的处理应交给其他线程池。
+ * 所有限流器默认共享 {@link #shared()} 返回的实例。
+ */
+public final class HashedWheelTimer implements AutoCloseable {
+    private static final Duration DEFAULT_TICK = Duration.ofMillis(1);
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos; // 每一格的时长，单位为纳秒
+    private final int mask; // 槽位数 - 1，槽位数为 2 的幂
+    private final Bucket[] wheel; // 槽位，只由工作线程读写
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>(); // 新提交、尚未放入槽位的任务
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>(); // 已取消、尚未从槽位摘除的任务
+    private final AtomicLong pendingTimeouts = new AtomicLong(); // 等待中的任务数
+    private final long startTime; // 启动时刻，第 n 格在 startTime + (n + 1) × tickNanos 时处理
+    private final Thread worker; // 工作线程
+    private volatile boolean running = true;
+    private long tick; // 当前格，只由工作线程读写
+
+    /**
+     * 每格 1ms，512 个槽位
+     */
+    public HashedWheelTimer() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tick      每一格的时长，即定时精度
+     * @param wheelSize 槽位数，向上取整为 2 的幂；延迟在 tick × wheelSize 以内的任务不需要记录圈数
+     */
+    public HashedWheelTimer(Duration tick, int wheelSize) {
+        if (tick.isNegative() || tick.isZero()) {
+            throw new IllegalArgumentException("tick must be positive: " + tick);
+        }
+        if (wheelSize <= 0 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException("wheelSize must be between 1 and 2^30: " + wheelSize);
+        }
+        this.tickNanos = tick.toNanos();
+        int size = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+        this.mask = size - 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, "hashed-wheel-timer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 所有限流器共享的定时器，每格 1ms，第一次使用时启动工作线程；共享实例不能关闭
+     */
+    public static HashedWheelTimer shared() {
+        return Holder.INSTANCE;
+    }
+
+    private static final class Holder {
+        static final HashedWheelTimer INSTANCE = new HashedWheelTimer();
+    }
+
+    /**
+     * 在 delay 之后执行任务
+     *
+     * @return 可以用于取消任务的句柄
+     * @throws IllegalStateException 定时器已关闭
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        if (!running) {
+            throw new IllegalStateException("timer is closed");
+        }
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+        pendingTimeouts.incrementAndGet();
+        pending.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * 等待中（未执行也未取消）的任务数
+     */
+    public long pendingTimeouts() {
+        return pendingTimeouts.get();
+    }
+
+    /**
+     * 停止工作线程，尚未执行的任务不再执行
+     *
+     * @throws IllegalStateException 关闭共享实例
+     */
+    @Override
+    public void close() {
+        if (this == Holder.INSTANCE) {
+            throw new IllegalStateException("shared timer cannot be closed");
+        }
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        long nextTick = startTime + tickNanos;
+        while (running) {
+            long sleepNanos = nextTick - System.nanoTime();
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+            removeCancelled();
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+            nextTick += tickNanos;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            // 还在提交队列中的任务没有槽位，放入槽位时会被跳过
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    // 把新提交的任务放入到期时刻所在的槽位，已经到期的放入当前槽位
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state != Timeout.WAITING) {
+                continue;
+            }
+            long target = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+            timeout.rounds = (target - tick) >> Integer.bitCount(mask);
+            wheel[(int) (target & mask)].add(timeout);
+        }
+    }
+
+    // 执行槽位中圈数为 0 的任务，其余任务圈数减一后留在槽位中
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds <= 0) {
+                bucket.remove(timeout);
+                timeout.expire();
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * 定时任务的句柄
+     */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline; // 到期时刻
+        private volatile int state; // 等待、已取消或已执行
+        private long rounds; // 还需要转过的圈数，只由工作线程读写
+        private Bucket bucket; // 所在槽位，只由工作线程读写
+        private Timeout prev; // 同一槽位的双向链表
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消任务
+         *
+         * @return true 表示本次调用取消了任务；任务已经执行或已经取消时返回 false
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, WAITING, CANCELLED)) {
+                return false;
+            }
+            timer.pendingTimeouts.decrementAndGet();
+            timer.cancelled.offer(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, WAITING, EXPIRED)) {
+                return;
+            }
+            timer.pendingTimeouts.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, e);
+            }
+        }
+    }
+
+    // 槽位中的任务双向链表
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (tail == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
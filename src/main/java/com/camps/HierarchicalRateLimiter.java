@@ -0,0 +1,206 @@
+package com.camps;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * 多级嵌套限流
+ * <p>
+ * 一个请求需要同时通过多级限流，例如全局每秒 10 万、每个租户每秒 5000、每个用户每秒 50。
+ * 每一级可以是任意 {@link RateLimiter} 实现，组合后的限流器本身也是 {@link RateLimiter}：
+ * <ul>
+ *     <li>依次向每一级获取许可，某一级限流时，按相反顺序把已经获取的许可归还给前面各级，不会漏掉令牌；
+ *     归还时带上获取前读取的 {@link RateLimiter#epoch()}，期间窗口已经滚动的级别不会把许可计入新窗口；</li>
+ *     <li>统计每一级的限流比例，定期把最容易限流的级别调整到最前面，多数被限流的请求只检查一级就返回；
+ *     限流比例相同的级别保持构造时的顺序，调用方应把开销小的级别放在前面。</li>
+ * </ul>
+ * 各级之间不加全局锁：在一个请求获取许可到归还许可之间，其他请求可能因为这部分许可暂时被占用而被限流，
+ * 但许可总数不会丢失，也不会多放行。每一级都必须支持 {@link RateLimiter#refund(int)}，构造时检查 {@link RateLimiter#supportsRefund()}。
+ * <p>
+ * 按租户、用户区分的多级限流可以和 {@link KeyedRateLimiter} 组合：按用户创建组合限流器，
+ * 全局级别和所属租户的级别在多个用户的组合限流器之间共享，租户级别通过 {@link KeyedRateLimiter#view(Object)} 按请求查找，
+ * 见 {@link #main(String[])}。
+ */
+public class HierarchicalRateLimiter implements RateLimiter {
+    private static final int REORDER_INTERVAL = 1024; // 平均每 1024 次请求调整一次顺序
+
+    private final RateLimiter[] levels; // 各级限流器，按构造顺序
+    private final LongAdder[] attempts; // 本统计周期内每一级被检查的次数
+    private final LongAdder[] rejects; // 本统计周期内每一级限流的次数
+    private final double[] rejectRates; // 每一级的限流比例，按周期衰减，只在持有 reorderLock 时读写
+    private final ReentrantLock reorderLock = new ReentrantLock(); // 同一时刻只有一个线程调整顺序
+    private volatile int[] order; // 检查顺序，元素为 levels 的下标
+
+    public HierarchicalRateLimiter(RateLimiter... levels) {
+        this(Arrays.asList(levels));
+    }
+
+    public HierarchicalRateLimiter(List<? extends RateLimiter> levels) {
+        if (levels.isEmpty()) {
+            throw new IllegalArgumentException("levels must not be empty");
+        }
+        int n = levels.size();
+        this.levels = levels.toArray(new RateLimiter[0]);
+        this.attempts = new LongAdder[n];
+        this.rejects = new LongAdder[n];
+        this.rejectRates = new double[n];
+        this.order = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (this.levels[i] == null) {
+                throw new NullPointerException("levels[" + i + "]");
+            }
+            if (!this.levels[i].supportsRefund()) {
+                throw new IllegalArgumentException("levels[" + i + "] does not support refund: "
+                        + this.levels[i].getClass().getSimpleName());
+            }
+            attempts[i] = new LongAdder();
+            rejects[i] = new LongAdder();
+            order[i] = i;
+        }
+    }
+
+    /**
+     * 依次向每一级获取许可，全部成功才放行；某一级限流时归还已经获取的许可
+     */
+    @Override
+    public boolean tryAcquire(int permits) {
+        Preconditions.checkPermits(permits);
+        boolean admitted = acquireFrom(order, 0, permits);
+        maybeReorder();
+        return admitted;
+    }
+
+    // 从检查顺序的第 i 级开始获取许可，后面某一级限流时归还本级的许可，各级按相反顺序归还。
+    // 获取前读取的周期编号保存在递归的栈帧中，不分配对象，递归深度不超过级数；最后一级不会归还，不读取
+    private boolean acquireFrom(int[] current, int i, int permits) {
+        if (i == current.length) {
+            return true;
+        }
+        RateLimiter level = levels[current[i]];
+        attempts[current[i]].increment();
+        long epoch = i < current.length - 1 ? level.epoch() : 0;
+        if (!level.tryAcquire(permits)) {
+            rejects[current[i]].increment();
+            return false;
+        }
+        if (acquireFrom(current, i + 1, permits)) {
+            return true;
+        }
+        level.refund(permits, epoch);
+        return false;
+    }
+
+    /**
+     * 各级可获取许可数的最小值
+     */
+    @Override
+    public int availablePermits() {
+        int available = Integer.MAX_VALUE;
+        for (RateLimiter level : levels) {
+            available = Math.min(available, level.availablePermits());
+        }
+        return available;
+    }
+
+    @Override
+    public boolean supportsRefund() {
+        return true;
+    }
+
+    /**
+     * 向每一级归还许可
+     */
+    @Override
+    public void refund(int permits) {
+        Preconditions.checkPermits(permits);
+        for (RateLimiter level : levels) {
+            level.refund(permits);
+        }
+    }
+
+    // 随机抽样触发，避免在请求路径上维护共享的计数器
+    private void maybeReorder() {
+        if (levels.length > 1 && ThreadLocalRandom.current().nextInt(REORDER_INTERVAL) == 0
+                && reorderLock.tryLock()) {
+            try {
+                reorder();
+            } finally {
+                reorderLock.unlock();
+            }
+        }
+    }
+
+    // 按衰减后的限流比例从高到低排序，比例相同时保持构造顺序
+    private void reorder() {
+        Integer[] sorted = new Integer[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            long checked = attempts[i].sumThenReset();
+            long rejected = rejects[i].sumThenReset();
+            // 本周期没有被检查到的级别保留原来的比例
+            if (checked > 0) {
+                rejectRates[i] = (rejectRates[i] + (double) rejected / checked) / 2;
+            }
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, (a, b) -> Double.compare(rejectRates[b], rejectRates[a]));
+        int[] next = new int[levels.length];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = sorted[i];
+        }
+        order = next;
+    }
+
+    /**
+     * 当前的检查顺序，元素为构造时各级的下标
+     */
+    public int[] order() {
+        return order.clone();
+    }
+
+    public static void main(String[] args) {
+        System.out.println("=================多级限流=================");
+        // 全局每秒 100 个，每个租户每秒 10 个，每个用户每秒 2 个，均为令牌桶，初始令牌为 0，使用手动时钟
+        ManualTimeSource clock = new ManualTimeSource();
+        TokenBucketLimiter global = new TokenBucketLimiter(100, 100, clock);
+        KeyedRateLimiter<String> tenants = new KeyedRateLimiter<>(tenant -> new TokenBucketLimiter(10, 10, clock),
+                Duration.ofMinutes(10), 10_000, clock);
+        // 租户级使用视图，每次请求都重新查找，租户的限流器空闲被清除后，用户的组合限流器使用新建的限流器
+        KeyedRateLimiter<String> users = new KeyedRateLimiter<>(user -> new HierarchicalRateLimiter(
+                global, tenants.view(user.substring(0, user.indexOf('/'))), new TokenBucketLimiter(2, 2, clock)),
+                Duration.ofMinutes(10), 100_000, clock);
+        // 先创建各级限流器，1 秒后令牌桶装满
+        for (int u = 0; u < 5; u++) {
+            users.limiterFor("a/user" + u);
+        }
+        HierarchicalRateLimiter hot = (HierarchicalRateLimiter) users.limiterFor("b/hot");
+        clock.advance(Duration.ofSeconds(1));
+        // 租户 a 下 5 个用户各请求 3 次：每个用户最多通过 2 次，租户 a 最多通过 10 次
+        int admitted = 0;
+        for (int round = 0; round < 3; round++) {
+            for (int u = 0; u < 5; u++) {
+                if (users.tryAcquire("a/user" + u)) {
+                    admitted++;
+                }
+            }
+        }
+        System.out.printf("租户 a 通过 %d 个请求，全局剩余 %d 个令牌，租户 a 剩余 %d 个令牌\n",
+                admitted, global.availablePermits(), tenants.limiterFor("a").availablePermits());
+        // 用户 a/user0 已经用完自己的令牌，继续请求被用户级限流，全局和租户级的令牌被归还
+        for (int i = 0; i < 3; i++) {
+            users.tryAcquire("a/user0");
+        }
+        System.out.printf("a/user0 再请求 3 次后全局剩余 %d 个令牌，租户 a 剩余 %d 个令牌\n",
+                global.availablePermits(), tenants.limiterFor("a").availablePermits());
+        // 热点用户持续被用户级限流，用户级被调整到最前面
+        for (int i = 0; i < 100_000; i++) {
+            hot.tryAcquire();
+        }
+        System.out.printf("b/hot 的检查顺序: %s (0 全局, 1 租户, 2 用户)\n", Arrays.toString(hot.order()));
+        System.out.println("------------------------------------------");
+    }
+}
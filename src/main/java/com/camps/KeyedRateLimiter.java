@@ -0,0 +1,258 @@
+package com.camps;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+
+/**
+ * 按 key 限流
+ * <p>
+ * 为每个 key（API key、用户、IP 等）按需创建一个独立的限流器，限流算法由创建限流器的工厂决定，
+ * 可以是 {@link FixedLimiter}、{@link SlidingLimiter}、{@link TokenBucketLimiter}、{@link LeakyBucketLimiter}
+ * 等任意 {@link RateLimiter} 实现。
+ * <p>
+ * 为了在 key 数量暴涨（例如被随机 key 攻击）时保持内存有界：
+ * <ul>
+ *     <li>超过 idleTimeout 没有被访问的 key 会被清除；</li>
+ *     <li>key 的数量超过 maxEntries 时，按最近访问时间清除最久未访问的 key，直到降到 maxEntries 的 90%。</li>
+ * </ul>
+ * 清理只在新建 key 时触发，同一时刻只有一个线程执行。按空闲时间的定期清理不会让其他线程等待；
+ * 新建 key 后数量超过 maxEntries 时，新建 key 的线程会等待正在进行的清理结束，数量仍然超过时自己再清理一次后才返回，
+ * 因此 key 的数量最多超过 maxEntries 同时新建 key 的线程数，新建 key 的速度不会超过清理的速度。
+ * 已存在的 key 查找路径上不分配对象。被清除的 key 再次访问时会创建新的限流器，状态从头开始。
+ */
+public class KeyedRateLimiter<K> {
+    private static final int TOUCH_GRANULARITY_SHIFT = 4; // 访问时间的更新粒度为 idleTimeout / 16，减少对共享缓存行的写
+    private static final double EVICTION_TARGET = 0.9; // 超出上限时清理到 maxEntries 的 90%
+
+    private final long idleTimeout; // 空闲超时时间，单位为纳秒
+    private final long touchGranularity; // 访问时间的更新粒度，单位为纳秒
+    private final int maxEntries; // 最多保存的 key 数
+    private final TimeSource timeSource; // 时钟
+    private final ConcurrentHashMap<K, Entry> limiters; // 每个 key 的限流器
+    private final Function<K, Entry> entryFactory; // 创建新 key 的限流器
+    private final ReentrantLock cleanUpLock; // 清理锁，保证同一时刻只有一个线程执行清理
+    private volatile long lastCleanUp; // 上次清理时间
+
+    public KeyedRateLimiter(Function<? super K, ? extends RateLimiter> factory, Duration idleTimeout, int maxEntries) {
+        this(factory, idleTimeout, maxEntries, TimeSource.SYSTEM);
+    }
+
+    public KeyedRateLimiter(Function<? super K, ? extends RateLimiter> factory, Duration idleTimeout, int maxEntries,
+                            TimeSource timeSource) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.idleTimeout = idleTimeout.toNanos();
+        this.touchGranularity = this.idleTimeout >>> TOUCH_GRANULARITY_SHIFT;
+        this.maxEntries = maxEntries;
+        this.timeSource = timeSource;
+        this.limiters = new ConcurrentHashMap<>();
+        this.entryFactory = key -> new Entry(factory.apply(key), timeSource.nanoTime());
+        this.cleanUpLock = new ReentrantLock();
+        this.lastCleanUp = timeSource.nanoTime();
+    }
+
+    public boolean tryAcquire(K key) {
+        return limiterFor(key).tryAcquire();
+    }
+
+    public boolean tryAcquire(K key, int permits) {
+        return limiterFor(key).tryAcquire(permits);
+    }
+
+    /**
+     * 返回 key 对应的限流器，不存在时创建
+     */
+    public RateLimiter limiterFor(K key) {
+        long now = timeSource.nanoTime();
+        Entry entry = limiters.get(key);
+        if (entry == null) {
+            entry = limiters.computeIfAbsent(key, entryFactory);
+            if (limiters.size() > maxEntries) {
+                evictOverflow();
+            } else if (now - lastCleanUp >= idleTimeout) {
+                cleanUp();
+            }
+        }
+        if (now - entry.lastAccess > touchGranularity) {
+            entry.lastAccess = now;
+        }
+        return entry.limiter;
+    }
+
+    /**
+     * 返回 key 的限流器视图，每次调用都重新查找 key 对应的限流器
+     * <p>
+     * 直接保存 {@link #limiterFor(Object)} 的返回值时，key 被清除后保存的限流器与之后新建的限流器各自计数，
+     * 限流不再生效。需要长期持有某个 key 的限流器时（例如作为 {@link HierarchicalRateLimiter} 的一级）使用视图。
+     */
+    public RateLimiter view(K key) {
+        return new View(key);
+    }
+
+    public int size() {
+        return limiters.size();
+    }
+
+    /**
+     * 清除空闲超时的 key，key 数量仍超过上限时清除最久未访问的 key；其他线程正在清理时直接返回
+     */
+    public void cleanUp() {
+        if (!cleanUpLock.tryLock()) {
+            return;
+        }
+        try {
+            evictIdle();
+        } finally {
+            cleanUpLock.unlock();
+        }
+    }
+
+    // key 数量超过上限，等待正在进行的清理结束，仍然超过上限时再清理一次
+    private void evictOverflow() {
+        cleanUpLock.lock();
+        try {
+            if (limiters.size() > maxEntries) {
+                evictIdle();
+            }
+        } finally {
+            cleanUpLock.unlock();
+        }
+    }
+
+    // 调用方持有清理锁
+    private void evictIdle() {
+        long now = timeSource.nanoTime();
+        lastCleanUp = now;
+        Iterator<Map.Entry<K, Entry>> iterator = limiters.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue().lastAccess >= idleTimeout) {
+                iterator.remove();
+            }
+        }
+        if (limiters.size() > maxEntries) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    // 找出第 n 久未访问的时间作为阈值，清除不晚于该时间访问的 key
+    private void evictLeastRecentlyUsed() {
+        long[] accessTimes = new long[limiters.size()];
+        int count = 0;
+        for (Entry entry : limiters.values()) {
+            if (count == accessTimes.length) {
+                break;
+            }
+            accessTimes[count++] = entry.lastAccess;
+        }
+        int evictCount = count - (int) (maxEntries * EVICTION_TARGET);
+        if (evictCount <= 0) {
+            return;
+        }
+        // 访问时间是相对值，先减去最小值再排序，避免 nanoTime 溢出导致顺序错误
+        long base = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            base = Math.min(base, accessTimes[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            accessTimes[i] -= base;
+        }
+        Arrays.sort(accessTimes, 0, count);
+        long threshold = accessTimes[evictCount - 1];
+        Iterator<Entry> iterator = limiters.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastAccess - base <= threshold) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final RateLimiter limiter;
+        volatile long lastAccess; // 最近访问时间
+
+        Entry(RateLimiter limiter, long lastAccess) {
+            this.limiter = limiter;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final class View implements RateLimiter {
+        private final K key;
+
+        View(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean tryAcquire(int permits) {
+            return limiterFor(key).tryAcquire(permits);
+        }
+
+        @Override
+        public int allowBatch(int n) {
+            return limiterFor(key).allowBatch(n);
+        }
+
+        @Override
+        public int allowEach(long[] costs, BitSet out) {
+            return limiterFor(key).allowEach(costs, out);
+        }
+
+        @Override
+        public int availablePermits() {
+            return limiterFor(key).availablePermits();
+        }
+
+        @Override
+        public boolean supportsRefund() {
+            return limiterFor(key).supportsRefund();
+        }
+
+        @Override
+        public void refund(int permits) {
+            limiterFor(key).refund(permits);
+        }
+
+        @Override
+        public long epoch() {
+            return limiterFor(key).epoch();
+        }
+
+        @Override
+        public void refund(int permits, long epoch) {
+            limiterFor(key).refund(permits, epoch);
+        }
+    }
+
+    public static void main(String[] args) {
+        System.out.println("=================按 key 限流=================");
+        // 每个 IP 一个令牌桶，每秒生成 2 个令牌，桶容量为 2；空闲 1 分钟清除，最多保存 1000 个 IP
+        KeyedRateLimiter<String> limiter = new KeyedRateLimiter<>(ip -> new TokenBucketLimiter(2, 2),
+                Duration.ofMinutes(1), 1000);
+        String[] ips = {"10.0.0.1", "10.0.0.2"};
+        for (int i = 0; i < 6; i++) {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (String ip : ips) {
+                System.out.printf("%s 第%d个请求%s\n", ip, i + 1, limiter.tryAcquire(ip) ? "通过" : "被限流");
+            }
+        }
+        // 模拟随机 key 攻击，key 数量保持在上限附近
+        for (int i = 0; i < 100_000; i++) {
+            limiter.tryAcquire("attacker-" + i);
+        }
+        System.out.printf("攻击后 key 数量: %d\n", limiter.size());
+        System.out.println("------------------------------------------");
+    }
+}
@@ -1,55 +1,181 @@
 package com.camps;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
-import java.time.Duration;
-import java.time.Instant;
 
 
 /**
  * 漏桶限流
+ * <p>
+ * 除了立即返回结果的 tryAcquire，还可以通过 {@link #reserve(int)} 预约：请求总是加入漏桶，
+ * 超出容量的部分需要等漏出后才能执行，返回需要等待的纳秒数，调用方据此延迟执行或返回 Retry-After。
+ * 漏桶内有超出容量的预约时 tryAcquire 不会插队。不能阻塞线程的场景使用 {@link #acquireAsync(int)}，
+ * 由共享的时间轮定时器在超出的部分漏出后完成返回的 future。
+ * <p>
+ * 漏出的请求数按纳秒时间差计算，不足一个请求的部分以 请求 × 10^9 为单位保存在 {@code leakFraction} 中，
+ * 下次请求时继续累加，持续负载下实际漏出速率与配置的速率一致。
  */
-public class LeakyBucketLimiter {
+public class LeakyBucketLimiter implements RateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
     private int rate; // 漏桶的速率
     private int capacity; // 漏桶容量
-    private int currentReqNum; // 当前桶内的请求数
-    private Instant lastTime;
+    private final TimeSource timeSource; // 时钟
+    private int currentReqNum; // 当前桶内的请求数，有预约时可能超过容量
+    private long leakFraction; // 不足一个请求的漏出部分，单位为 1/10^9 个请求
+    private long lastTime; // 上次请求时间
     private final ReentrantLock lock = new ReentrantLock();
 
     public LeakyBucketLimiter(int rate, int capacity) {
+        this(rate, capacity, TimeSource.SYSTEM);
+    }
+
+    public LeakyBucketLimiter(int rate, int capacity, TimeSource timeSource) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
         this.rate = rate;
         this.capacity = capacity;
+        this.timeSource = timeSource;
         this.currentReqNum = 0;
-        this.lastTime = Instant.now();
+        this.lastTime = timeSource.nanoTime();
     }
 
     public boolean allow() {
+        return tryAcquire();
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        return tryAcquireOrShortfall(permits) == 0;
+    }
+
+    /**
+     * 按请求的代价一次性向漏桶加入多个单位，要么全部加入，要么一个都不加入
+     *
+     * @param permits 本次请求占用的单位数，必须大于 0；大于桶容量的请求永远不会成功
+     * @return 0 表示加入成功；否则为漏桶还差的空余容量，漏桶状态不变
+     */
+    public int tryAcquireOrShortfall(int permits) {
+        Preconditions.checkPermits(permits);
         lock.lock();
         try {
-            // 在 Java 中，java.time.Duration.between()方法用于计算两个时间点之间的时间间隔。
-            long elapsed = Duration.between(lastTime, Instant.now()).toMillis();
-            double seconds = elapsed / 1000.0;
-            // 已处理请求数 = (当前请求时间 − 上次请求时间) × 处理速率
-            int leakyReqCount = (int) (seconds * rate);
-
-            if (leakyReqCount > 0) {
-                currentReqNum -= leakyReqCount;
-                lastTime = Instant.now();
+            leak();
+            // 加入后不超过容量，可以加入漏桶
+            if (currentReqNum <= capacity - permits) {
+                currentReqNum += permits;
+                return 0;
             }
-            // 漏桶内的请求全部被处理了，当前请求数置为0
-            if (currentReqNum < 0) {
-                currentReqNum = 0;
+            return (int) Math.min(Integer.MAX_VALUE, (long) permits - (capacity - currentReqNum));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 预约加入漏桶，不等待
+     * <p>
+     * 请求立即加入漏桶，加入后超出容量时，需要等超出的部分漏出后再执行；不执行时通过 {@link #refund(int)} 归还。
+     *
+     * @param permits 本次请求占用的单位数，必须大于 0
+     * @return 需要等待的纳秒数，0 表示可以立即执行
+     */
+    public long reserve(int permits) {
+        Preconditions.checkPermits(permits);
+        lock.lock();
+        try {
+            leak();
+            long overflow = (long) currentReqNum + permits - capacity;
+            if (overflow > Integer.MAX_VALUE - capacity) {
+                throw new IllegalStateException("too many permits reserved: " + overflow);
             }
-            // 当前请求数小于容量，可以加入漏桶
-            if (currentReqNum < capacity) {
-                currentReqNum++;
-                return true;
+            currentReqNum += permits;
+            if (overflow <= 0) {
+                return 0;
             }
-            return false;
+            // 漏出 overflow 个请求还需要的时间，已漏出的不足一个请求的部分计算在内
+            return (overflow * NANOS_PER_SECOND - leakFraction + rate - 1) / rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 异步加入漏桶，不阻塞调用线程
+     * <p>
+     * 请求立即加入漏桶，返回的 future 在超出容量的部分漏出后由共享的时间轮定时器完成（最多晚 1ms），未超出容量时返回已完成的 future。
+     * 完成前调用 {@link CompletableFuture#cancel(boolean)} 会把请求移出漏桶。
+     *
+     * @param permits 本次请求占用的单位数，必须大于 0
+     */
+    public CompletableFuture<Void> acquireAsync(int permits) {
+        return PermitFuture.schedule(this, permits, reserve(permits));
+    }
+
+    /**
+     * 预约加入漏桶，不等待，结果写入可复用的 {@link Reservation}，可以通过 {@link Reservation#cancel()} 取消
+     *
+     * @return 传入的 reservation
+     */
+    public Reservation reserve(int permits, Reservation reservation) {
+        long waitNanos = reserve(permits);
+        reservation.set(this, timeSource, permits, timeSource.nanoTime() + waitNanos);
+        return reservation;
+    }
+
+    @Override
+    public boolean supportsRefund() {
+        return true;
+    }
+
+    /**
+     * 从漏桶中移出请求，用于取消预约或请求被取消的场景
+     */
+    @Override
+    public void refund(int permits) {
+        Preconditions.checkPermits(permits);
+        lock.lock();
+        try {
+            leak();
+            currentReqNum = Math.max(0, currentReqNum - permits);
         } finally {
             lock.unlock();
         }
     }
 
+    @Override
+    public int availablePermits() {
+        lock.lock();
+        try {
+            leak();
+            return Math.max(0, capacity - currentReqNum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void leak() {
+        long now = timeSource.nanoTime();
+        long elapsed = now - lastTime;
+        lastTime = now;
+        // 已处理请求数 = (当前请求时间 − 上次请求时间) × 处理速率 + 上次剩余的不足一个请求的部分
+        // 间隔超过漏完桶内所有请求的时间，漏桶已空；同时避免乘法溢出
+        if (elapsed >= currentReqNum * NANOS_PER_SECOND / rate) {
+            currentReqNum = 0;
+            leakFraction = 0;
+            return;
+        }
+        long scaledLeaked = elapsed * rate + leakFraction;
+        long leakyReqCount = scaledLeaked / NANOS_PER_SECOND;
+        leakFraction = scaledLeaked % NANOS_PER_SECOND;
+        if (leakyReqCount >= currentReqNum) {
+            currentReqNum = 0;
+            leakFraction = 0;
+        } else {
+            currentReqNum -= (int) leakyReqCount;
+        }
+    }
+
     public static void mockRequest(int n, long delay, LeakyBucketLimiter limiter) {
         for (int i = 0; i < n; i++) {
             try {
@@ -0,0 +1,208 @@
+package com.camps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * 漏桶整形
+ * <p>
+ * {@link LeakyBucketLimiter} 只计数，桶未满时请求立即放行，突发流量会原样到达下游。
+ * 整形模式真正排队：提交的任务进入容量为 capacity 的队列，超出容量的任务被拒绝；
+ * 单个漏水线程严格按每秒 rate 个的恒定速率取出任务执行，为数据库等下游提供平稳的流量。
+ * <ul>
+ *     <li>队列是无锁的多生产者队列，提交任务不加锁，只有漏水线程消费；</li>
+ *     <li>速率很高时线程挂起的精度跟不上任务间隔，漏水线程每次醒来一次性取出所有到期的任务，
+ *     任务的放行时刻按 1/rate 的整数纳秒加余数精确累加，长时间运行没有漂移；</li>
+ *     <li>队列为空时不积累放行额度，空闲后到来的突发流量同样按恒定速率放行。</li>
+ * </ul>
+ * 任务默认在漏水线程中执行，执行耗时较长时应传入 executor，避免拖慢放行节奏。
+ * 放行时刻由传入的 {@link TimeSource} 计算；漏水线程按真实时间挂起，醒来后重新读取时钟，
+ * 使用 {@link ManualTimeSource} 时任务在时钟前进后的下一次检查时放行。
+ */
+public class LeakyBucketShaper implements AutoCloseable {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int rate; // 每秒放行的任务数
+    private final int capacity; // 队列容量
+    private final long intervalNanos; // 相邻两个任务放行间隔的整数部分，单位为纳秒
+    private final long intervalRemainder; // 放行间隔的余数部分，单位为 1/rate 纳秒
+    private final Executor executor; // 执行任务的线程池，为 null 时在漏水线程中执行
+    private final TimeSource timeSource; // 时钟
+    private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>(); // 等待放行的任务
+    private final AtomicInteger size = new AtomicInteger(); // 队列中的任务数
+    private final Thread drainer; // 漏水线程
+    private volatile boolean idle; // 漏水线程是否因队列为空而挂起
+    private volatile boolean running = true;
+    private long nextRelease; // 下一个任务的放行时刻，只由漏水线程读写
+    private long remainderSum; // 累计的间隔余数，只由漏水线程读写
+
+    public LeakyBucketShaper(int rate, int capacity) {
+        this(rate, capacity, null);
+    }
+
+    public LeakyBucketShaper(int rate, int capacity, Executor executor) {
+        this(rate, capacity, executor, TimeSource.SYSTEM);
+    }
+
+    public LeakyBucketShaper(int rate, int capacity, Executor executor, TimeSource timeSource) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.rate = rate;
+        this.capacity = capacity;
+        this.intervalNanos = NANOS_PER_SECOND / rate;
+        this.intervalRemainder = NANOS_PER_SECOND % rate;
+        this.executor = executor;
+        this.timeSource = timeSource;
+        this.nextRelease = timeSource.nanoTime();
+        this.drainer = new Thread(this::drain, "leaky-bucket-shaper");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * 提交任务，由漏水线程按恒定速率执行
+     *
+     * @return true 表示任务已进入队列，false 表示队列已满或已关闭，任务被拒绝
+     */
+    public boolean submit(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        if (!running) {
+            return false;
+        }
+        // 先占用容量再入队，保证队列长度不超过容量
+        for (;;) {
+            int current = size.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        queue.offer(task);
+        if (idle) {
+            LockSupport.unpark(drainer);
+        }
+        return true;
+    }
+
+    /**
+     * 队列中等待放行的任务数
+     */
+    public int queued() {
+        return size.get();
+    }
+
+    private void drain() {
+        boolean draining = false; // 上一次检查时队列是否非空
+        while (running) {
+            if (queue.isEmpty()) {
+                draining = false;
+                // 先标记再检查一次，避免与提交任务的线程之间漏掉唤醒
+                idle = true;
+                if (queue.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                continue;
+            }
+            long now = timeSource.nanoTime();
+            // 队列为空期间（包括创建后第一个任务到来之前）不积累放行额度，空闲后的第一个任务从当前时刻开始计时
+            if (!draining) {
+                draining = true;
+                if (nextRelease - now < 0) {
+                    nextRelease = now;
+                    remainderSum = 0;
+                }
+            }
+            if (nextRelease - now > 0) {
+                LockSupport.parkNanos(this, nextRelease - now);
+                continue;
+            }
+            // 一次性放行所有到期的任务
+            Runnable task;
+            while (nextRelease - now <= 0 && (task = queue.poll()) != null) {
+                size.decrementAndGet();
+                advance();
+                execute(task);
+            }
+        }
+    }
+
+    // 放行时刻前进 1/rate 秒，余数累计满 1 纳秒时进位
+    private void advance() {
+        nextRelease += intervalNanos;
+        remainderSum += intervalRemainder;
+        if (remainderSum >= rate) {
+            remainderSum -= rate;
+            nextRelease++;
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                task.run();
+            }
+        } catch (RuntimeException e) {
+            Thread current = Thread.currentThread();
+            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+        }
+    }
+
+    /**
+     * 停止漏水线程，返回尚未放行的任务
+     */
+    public List<Runnable> shutdownNow() {
+        running = false;
+        LockSupport.unpark(drainer);
+        List<Runnable> pending = new ArrayList<>();
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+            size.decrementAndGet();
+            pending.add(task);
+        }
+        return pending;
+    }
+
+    /**
+     * 停止漏水线程，丢弃尚未放行的任务
+     */
+    @Override
+    public void close() {
+        shutdownNow();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=================漏桶整形=================");
+        // 每秒放行4个任务，队列容量为5
+        LeakyBucketShaper shaper = new LeakyBucketShaper(4, 5);
+        long begin = System.nanoTime();
+        // 瞬间提交10个任务，超出队列容量的被拒绝，其余的每250ms放行一个
+        for (int i = 0; i < 10; i++) {
+            int taskId = i + 1;
+            boolean accepted = shaper.submit(() -> System.out.printf("%4d ms 第%d个任务执行\n",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), taskId));
+            if (!accepted) {
+                System.out.printf("第%d个任务被拒绝\n", taskId);
+            }
+        }
+        Thread.sleep(2000);
+        shaper.close();
+        System.out.println("------------------------------------------");
+    }
+}
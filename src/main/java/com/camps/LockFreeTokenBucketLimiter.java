@@ -0,0 +1,168 @@
+package com.camps;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 无锁令牌桶限流
+ * <p>
+ * 与 {@link TokenBucketLimiter} 的放行/限流语义一致，但不使用锁：令牌数与上次生成令牌的时间
+ * 被打包进同一个 {@link AtomicLong}，生成令牌与消费令牌在一次 CAS 循环内完成。
+ * <pre>
+ *  63                      24 23             0
+ * +--------------------------+----------------+
+ * |  上次生成令牌时间(毫秒)   |    当前令牌数    |
+ * +--------------------------+----------------+
+ * </pre>
+ * 时间为相对于限流器创建时刻的毫秒偏移（由 {@link TimeSource} 的纳秒时间换算），40 位约可表示 34 年；令牌数占 24 位，因此容量不能超过 {@link #MAX_CAPACITY}。
+ * <p>
+ * 状态中放不下不足一个令牌的部分，因此生成的令牌数按创建时刻对齐计算：到第 t 毫秒共生成 ⌊t × rate / 1000⌋ 个令牌，
+ * 两次请求之间生成的令牌数是两个时刻的差，上次没有凑成整个令牌的部分在下次请求时计入，不会因为请求频繁而丢失。
+ */
+public class LockFreeTokenBucketLimiter implements RateLimiter {
+    public static final int MAX_CAPACITY = (1 << 24) - 1; // 令牌桶容量上限
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = MAX_CAPACITY;
+
+    private final int rate; // 令牌产生的速度，即每秒生成多少个令牌
+    private final int capacity; // 令牌桶容量，最多可存储令牌数
+    private final long fillMillis; // 令牌桶从空到满需要的时间，单位为毫秒
+    private final TimeSource timeSource; // 时钟
+    private final long origin; // 限流器创建时刻，时间戳以此为基准
+    private final AtomicLong state; // 高 40 位为上次生成令牌时间，低 24 位为当前令牌数
+
+    public LockFreeTokenBucketLimiter(int rate, int capacity) {
+        this(rate, capacity, TimeSource.SYSTEM);
+    }
+
+    public LockFreeTokenBucketLimiter(int rate, int capacity, TimeSource timeSource) {
+        if (capacity < 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be between 0 and " + MAX_CAPACITY);
+        }
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
+        this.rate = rate;
+        this.capacity = capacity;
+        this.fillMillis = (capacity * 1000L + rate - 1) / rate;
+        this.timeSource = timeSource;
+        this.origin = timeSource.nanoTime();
+        this.state = new AtomicLong(pack(0, 0));
+    }
+
+    public boolean allow() {
+        return tryAcquire();
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        Preconditions.checkPermits(permits);
+        long now = currentMillis();
+        for (;;) {
+            long current = state.get();
+            long lastTime = current >>> TOKEN_BITS;
+            int currentTokenNum = (int) (current & TOKEN_MASK);
+            // 两次请求间隔内生成的令牌数
+            int tokenCount = tokenCount(lastTime, now);
+            // 生成的令牌大于0，则加入到令牌桶，并且令牌数最多为容量大小
+            if (tokenCount > 0) {
+                currentTokenNum = (int) Math.min((long) currentTokenNum + tokenCount, capacity);
+                lastTime = now;
+            }
+            // 令牌桶内的令牌不够，限流；即使生成了新令牌也不回写，下次请求会重新计算
+            if (currentTokenNum < permits) {
+                return false;
+            }
+            if (state.compareAndSet(current, pack(lastTime, currentTokenNum - permits))) {
+                return true;
+            }
+            // CAS 失败说明其他线程已修改状态，基于最新状态重试
+        }
+    }
+
+    @Override
+    public boolean supportsRefund() {
+        return true;
+    }
+
+    /**
+     * 归还令牌，令牌桶内的令牌数量最多为容量大小
+     */
+    @Override
+    public void refund(int permits) {
+        Preconditions.checkPermits(permits);
+        for (;;) {
+            long current = state.get();
+            int currentTokenNum = (int) (current & TOKEN_MASK);
+            int refunded = (int) Math.min((long) currentTokenNum + permits, capacity);
+            if (refunded == currentTokenNum
+                    || state.compareAndSet(current, pack(current >>> TOKEN_BITS, refunded))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int availablePermits() {
+        long current = state.get();
+        long now = currentMillis();
+        int currentTokenNum = (int) (current & TOKEN_MASK);
+        return (int) Math.min((long) currentTokenNum + tokenCount(current >>> TOKEN_BITS, now), capacity);
+    }
+
+    private long currentMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeSource.nanoTime() - origin);
+    }
+
+    private int tokenCount(long lastTime, long now) {
+        // 间隔超过填满令牌桶的时间时直接按容量计算
+        if (now <= lastTime) {
+            return 0;
+        }
+        return now - lastTime >= fillMillis ? capacity
+                : (int) (generatedTokens(now, rate) - generatedTokens(lastTime, rate));
+    }
+
+    /**
+     * 从 0 到第 millis 毫秒共生成的令牌数 ⌊millis × rate / 1000⌋，分成整秒和不足一秒两部分计算，避免乘法溢出
+     */
+    static long generatedTokens(long millis, int rate) {
+        return millis / 1000 * rate + millis % 1000 * rate / 1000;
+    }
+
+    private static long pack(long lastTime, int tokens) {
+        return (lastTime << TOKEN_BITS) | tokens;
+    }
+
+    /**
+     * 多线程竞争下与加锁版本的吞吐量对比，每轮固定运行时间，统计所有线程的调用次数
+     */
+    public static void contentionBenchmark(int threads, long millis) throws InterruptedException {
+        TokenBucketLimiter lockLimiter = new TokenBucketLimiter(100_000_000, MAX_CAPACITY);
+        LockFreeTokenBucketLimiter casLimiter = new LockFreeTokenBucketLimiter(100_000_000, MAX_CAPACITY);
+        double lockOps = ContentionBenchmark.opsPerSecond(threads, millis, lockLimiter);
+        double casOps = ContentionBenchmark.opsPerSecond(threads, millis, casLimiter);
+        System.out.printf("%2d 线程  ReentrantLock: %,14.0f ops/s  CAS: %,14.0f ops/s  (%.2fx)\n",
+                threads, lockOps, casOps, casOps / lockOps);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=================无锁令牌桶算法=================");
+        // 创建一个令牌桶，令牌的生成速度为每秒4个，桶容量为5个请求
+        LockFreeTokenBucketLimiter limiter = new LockFreeTokenBucketLimiter(4, 5);
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(50);
+            if (limiter.allow()) {
+                System.out.printf("第%d个请求通过\n", i + 1);
+            } else {
+                System.out.printf("第%d个请求被限流\n", i + 1);
+            }
+        }
+        System.out.println("=================竞争压测=================");
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            contentionBenchmark(threads, 1000);
+        }
+        System.out.println("------------------------------------------");
+    }
+}
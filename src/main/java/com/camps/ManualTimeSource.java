@@ -0,0 +1,30 @@
+package com.camps;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 手动时钟
+ * <p>
+ * 时间只在调用 {@link #advance(Duration)} 时前进，用于在测试和演示中得到确定的限流结果。
+ */
+public class ManualTimeSource implements TimeSource {
+    private final AtomicLong now = new AtomicLong();
+
+    @Override
+    public long nanoTime() {
+        return now.get();
+    }
+
+    public void advance(Duration duration) {
+        advanceNanos(duration.toNanos());
+    }
+
+    public void advanceNanos(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("time can not go backwards: " + nanos);
+        }
+        now.addAndGet(nanos);
+    }
+}
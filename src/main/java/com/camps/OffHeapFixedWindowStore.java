@@ -0,0 +1,100 @@
+package com.camps;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 堆外按 key 固定窗口限流
+ * <p>
+ * 与 {@link FixedLimiter} 语义一致，每个 key 的窗口起始时间（毫秒，40 位）和窗口内请求数（24 位）打包进一个 long，
+ * 保存在 {@link OffHeapSlab} 的堆外槽位里，通过 CAS 更新，不产生任何堆对象。
+ * 新 key 的第一个请求开启它的第一个窗口。窗口已经过期的 key 与新 key 没有区别，可以被删除，槽位留给新 key；
+ * key 数达到 maxKeys 并且没有可以删除的 key 时，新 key 的请求立即限流。
+ */
+public class OffHeapFixedWindowStore {
+    public static final int MAX_REQUESTS = (1 << 24) - 1; // 每个窗口最大请求数的上限
+    private static final int COUNT_BITS = OffHeapSlab.TIME_SHIFT; // 请求数占低 24 位，时间的位置与槽位表约定的一致
+    private static final long COUNT_MASK = MAX_REQUESTS;
+
+    private final long windowSize; // 窗口大小，单位为毫秒
+    private final int maxRequests; // 最大请求数
+    private final TimeSource timeSource; // 时钟
+    private final long origin; // 时间戳以此为基准，状态中的时间从 1 开始，0 表示尚未初始化的新 key
+    private final OffHeapSlab slab; // 堆外槽位表
+
+    public OffHeapFixedWindowStore(Duration windowSize, int maxRequests, long maxKeys) {
+        this(windowSize, maxRequests, maxKeys, TimeSource.SYSTEM);
+    }
+
+    public OffHeapFixedWindowStore(Duration windowSize, int maxRequests, long maxKeys, TimeSource timeSource) {
+        if (maxRequests < 0 || maxRequests > MAX_REQUESTS) {
+            throw new IllegalArgumentException("maxRequests must be between 0 and " + MAX_REQUESTS);
+        }
+        this.windowSize = windowSize.toMillis();
+        this.maxRequests = maxRequests;
+        this.timeSource = timeSource;
+        this.origin = timeSource.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1);
+        this.slab = new OffHeapSlab(maxKeys, Math.max(1, this.windowSize));
+    }
+
+    public boolean tryAcquire(long key) {
+        return tryAcquire(key, 1);
+    }
+
+    public boolean tryAcquire(long key, int permits) {
+        Preconditions.checkPermits(permits);
+        long now = currentMillis();
+        long address = slab.stateAddress(key, now);
+        for (;;) {
+            if (address == OffHeapSlab.NOT_FOUND) {
+                return false; // 没有可用的槽位，限流
+            }
+            long current = OffHeapSlab.getState(address, key);
+            if (current == OffHeapSlab.STALE) {
+                address = slab.stateAddress(key, now); // key 已被删除
+                continue;
+            }
+            long lastReset = current >>> COUNT_BITS;
+            int requests = (int) (current & COUNT_MASK);
+            // 新 key 或窗口到期，重置窗口
+            if (current == 0 || now - lastReset >= windowSize) {
+                lastReset = now;
+                requests = 0;
+            }
+            if (requests > maxRequests - permits) {
+                return false; // 限流
+            }
+            if (OffHeapSlab.compareAndSetState(address, current, pack(lastReset, requests + permits))) {
+                return true;
+            }
+        }
+    }
+
+    public int availablePermits(long key) {
+        long address = slab.findStateAddress(key);
+        if (address == OffHeapSlab.NOT_FOUND) {
+            return maxRequests;
+        }
+        long current = OffHeapSlab.getState(address, key);
+        if (current == 0 || current == OffHeapSlab.STALE || currentMillis() - (current >>> COUNT_BITS) >= windowSize) {
+            return maxRequests;
+        }
+        return maxRequests - (int) (current & COUNT_MASK);
+    }
+
+    /**
+     * 已保存的 key 数
+     */
+    public long size() {
+        return slab.size();
+    }
+
+    private long currentMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeSource.nanoTime() - origin);
+    }
+
+    private static long pack(long lastReset, int requests) {
+        return (lastReset << COUNT_BITS) | requests;
+    }
+}
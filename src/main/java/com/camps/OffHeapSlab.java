@@ -0,0 +1,372 @@
+package com.camps;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * 堆外定长槽位表
+ * <p>
+ * 每个槽位 16 字节，前 8 字节为 key，后 8 字节为限流状态，所有槽位分布在若干块直接内存（direct ByteBuffer）中，
+ * 由开放寻址（线性探测）哈希索引定位。key 为 0 表示空槽位，真正的 key 0 使用单独的一个槽位。
+ * 状态的高 40 位为最近一次更新的时间（毫秒，从 1 开始），低 24 位由调用方使用，状态由调用方 CAS 更新，0 表示新 key。
+ * <ul>
+ *     <li>查找已有的 key 不加锁，探测到空槽位或插入时用到过的最大探测距离为止；</li>
+ *     <li>新 key 加锁后插入，保存的 key 数不超过 maxKeys。未达到 maxKeys 时插入一直探测到可用的槽位为止，
+ *     槽位数大于 maxKeys，插入一定成功；</li>
+ *     <li>状态超过 idleMillis 没有更新的 key 可以删除：把状态 CAS 为 {@link #STALE}，槽位成为墓碑，key 保留，
+ *     线性探测的查找不会在墓碑处停止。新 key 插入到探测序列上的第一个墓碑、空闲的槽位或空槽位，
+ *     key 数达到 maxKeys 时只替换前 {@value #MAX_PROBES} 个槽位中空闲的 key；
+ *     没有可替换的 key 时，插入的线程从上次的位置继续检查最多 {@value #SWEEP_SLOTS} 个槽位，把空闲的 key 删除。
+ *     同一毫秒内检查没有删除任何 key 时，之后的新 key 不加锁直接失败，大量新 key 不会在锁上排队；</li>
+ *     <li>持有旧地址的线程通过 {@link #getState(long, long)} 读到 {@link #STALE} 或其他 key 后重新查找。
+ *     槽位重新使用时状态的时间不早于当前时间，旧 key 读到的状态的时间早于删除时间至少 idleMillis，旧 key 的 CAS 不会误改新 key 的状态。
+ *     重新使用的槽位的状态为 当前时间 + 创建时指定的低 24 位初始值。</li>
+ * </ul>
+ * 数据不在 Java 堆中，不增加 GC 的扫描和复制开销。
+ */
+final class OffHeapSlab {
+    // Java 8 没有 VarHandle，在直接内存上做 CAS 只能使用 sun.misc.Unsafe。这里通过反射取得 Unsafe，
+    // 把用到的方法绑定为 MethodHandle：源码中不出现 sun.misc 的类型，编译时不产生内部 API 警告，
+    // static final 的 MethodHandle 经 JIT 内联后与直接调用 Unsafe 相同。所有 Unsafe 的访问都集中在这几个字段中
+    private static final MethodHandle GET_LONG_VOLATILE; // (Object, long) long
+    private static final MethodHandle PUT_LONG_VOLATILE; // (Object, long, long) void
+    private static final MethodHandle COMPARE_AND_SWAP_LONG; // (Object, long, long, long) boolean
+    private static final MethodHandle GET_LONG; // (Object, long) long，用于读取 Buffer.address
+    private static final long ADDRESS_OFFSET; // Buffer.address 字段偏移，用于获取直接内存地址
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            GET_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "getLongVolatile",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            PUT_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "putLongVolatile",
+                    MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            COMPARE_AND_SWAP_LONG = lookup.findVirtual(unsafeClass, "compareAndSwapLong",
+                    MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class)).bindTo(unsafe);
+            GET_LONG = lookup.findVirtual(unsafeClass, "getLong",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            MethodHandle objectFieldOffset = lookup.findVirtual(unsafeClass, "objectFieldOffset",
+                    MethodType.methodType(long.class, Field.class)).bindTo(unsafe);
+            ADDRESS_OFFSET = (long) objectFieldOffset.invokeExact(Buffer.class.getDeclaredField("address"));
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static final long NOT_FOUND = -1;
+    /**
+     * key 已被删除，或者槽位已经属于其他 key，持有该地址的线程需要重新查找
+     */
+    static final long STALE = -1;
+    static final int TIME_SHIFT = 24; // 状态中时间的起始位
+    private static final int MAX_PROBES = 64; // key 数达到上限时寻找空闲 key 的槽位数，64 个槽位共 1 KB，是连续的 16 个缓存行
+    private static final int SWEEP_SLOTS = 1024; // key 数达到上限时每次检查的槽位数
+    private static final long FULL = -2; // 探测范围内没有可用的槽位
+    private static final int SLOT_SIZE = 16;
+    private static final int SLAB_SHIFT = 26; // 每块直接内存 2^26 个槽位，即 1 GB
+    private static final double LOAD_FACTOR = 0.75;
+
+    private final long maxKeys; // 最多保存的 key 数
+    private final long idleMillis; // 状态超过这么久没有更新的 key 可以删除
+    private final long initialBits; // 重新使用的槽位状态的低 24 位
+    private final long mask; // 槽位数 - 1，槽位数为 2 的幂
+    private final ByteBuffer[] slabs; // 持有直接内存的引用，防止被回收
+    private final long[] addresses; // 每块直接内存的起始地址
+    private final ByteBuffer zeroKeySlot; // key 0 的槽位
+    private final long zeroKeyAddress;
+    private final ReentrantLock insertLock = new ReentrantLock(); // 插入锁，新 key 的插入和删除逐个进行
+    private volatile long size; // 保存的 key 数，不包括墓碑，只在持有插入锁时修改
+    private volatile long maxDistance; // 插入时用到过的最大探测距离，只在持有插入锁时增加
+    private long hand; // 下一次检查的槽位下标，只在持有插入锁时读写
+    private volatile long fruitlessSweep = Long.MIN_VALUE; // 最近一次没有删除任何 key 的检查时间
+
+    /**
+     * @param maxKeys    最多保存的 key 数
+     * @param idleMillis 状态超过这么久没有更新的 key 可以删除，必须大于 0
+     */
+    OffHeapSlab(long maxKeys, long idleMillis) {
+        this(maxKeys, idleMillis, 0);
+    }
+
+    /**
+     * @param initialBits 重新使用的槽位状态的低 24 位，即被删除的 key 再次插入时的初始值
+     */
+    OffHeapSlab(long maxKeys, long idleMillis, long initialBits) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("maxKeys must be positive: " + maxKeys);
+        }
+        if (idleMillis <= 0) {
+            throw new IllegalArgumentException("idleMillis must be positive: " + idleMillis);
+        }
+        this.maxKeys = maxKeys;
+        this.idleMillis = idleMillis;
+        this.initialBits = initialBits & ((1L << TIME_SHIFT) - 1);
+        long slots = Long.highestOneBit((long) Math.ceil(maxKeys / LOAD_FACTOR) - 1) << 1;
+        slots = Math.max(slots, 2);
+        this.mask = slots - 1;
+        int slabCount = (int) ((slots + (1L << SLAB_SHIFT) - 1) >>> SLAB_SHIFT);
+        this.slabs = new ByteBuffer[slabCount];
+        this.addresses = new long[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            long slabSlots = Math.min(slots - ((long) i << SLAB_SHIFT), 1L << SLAB_SHIFT);
+            slabs[i] = ByteBuffer.allocateDirect((int) (slabSlots * SLOT_SIZE));
+            addresses[i] = bufferAddress(slabs[i]);
+            // allocateDirect 分配的内存已清零，所有槽位都是空槽位
+        }
+        this.zeroKeySlot = ByteBuffer.allocateDirect(SLOT_SIZE);
+        this.zeroKeyAddress = bufferAddress(zeroKeySlot);
+    }
+
+    /**
+     * 查找 key 的状态地址，不存在时插入；没有可用的槽位时返回 {@link #NOT_FOUND}
+     *
+     * @param now 当前时间，单位为毫秒，与状态中的时间使用同一个基准
+     */
+    long stateAddress(long key, long now) {
+        if (key == 0) {
+            if (getLongVolatile(zeroKeyAddress) == 0 && !insertZeroKey()) {
+                return NOT_FOUND;
+            }
+            return zeroKeyAddress + 8;
+        }
+        long home = mix(key) & mask;
+        long limit = maxDistance;
+        boolean idle = false;
+        for (long probes = 0; probes <= limit; probes++) {
+            long address = slotAddress((home + probes) & mask);
+            long current = getLongVolatile(address);
+            if (current == 0) {
+                break;
+            }
+            long state = getLongVolatile(address + 8);
+            if (current == key && state != STALE) {
+                return address + 8;
+            }
+            idle = idle || (probes < MAX_PROBES && isIdle(state, now));
+        }
+        return idle || size < maxKeys || fruitlessSweep != now ? insert(key, home, now) : NOT_FOUND;
+    }
+
+    /**
+     * 只查找不分配，key 不存在时返回 {@link #NOT_FOUND}；key 已被删除时返回的地址上的状态为 {@link #STALE}
+     */
+    long findStateAddress(long key) {
+        if (key == 0) {
+            return getLongVolatile(zeroKeyAddress) == 0 ? NOT_FOUND : zeroKeyAddress + 8;
+        }
+        long home = mix(key) & mask;
+        long limit = maxDistance;
+        for (long probes = 0; probes <= limit; probes++) {
+            long address = slotAddress((home + probes) & mask);
+            long current = getLongVolatile(address);
+            if (current == key) {
+                return address + 8;
+            }
+            if (current == 0) {
+                return NOT_FOUND;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private long insert(long key, long home, long now) {
+        insertLock.lock();
+        try {
+            long address = place(key, home, now);
+            if (address == FULL && sweep(now)) {
+                address = place(key, home, now);
+            }
+            return address == FULL ? NOT_FOUND : address;
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    // 持有插入锁，先确认 key 没有被其他线程插入，再使用探测序列上第一个墓碑、空闲的槽位或空槽位。
+    // key 数未达到上限时一直探测到可用的槽位为止；达到上限时只能替换前 MAX_PROBES 个槽位中空闲的 key
+    private long place(long key, long home, long now) {
+        long limit = maxDistance;
+        for (long probes = 0; probes <= limit; probes++) {
+            long address = slotAddress((home + probes) & mask);
+            long current = getLongVolatile(address);
+            if (current == 0) {
+                break;
+            }
+            if (current == key && getLongVolatile(address + 8) != STALE) {
+                return address + 8;
+            }
+        }
+        for (long probes = 0; probes <= mask && (size < maxKeys || probes < MAX_PROBES); probes++) {
+            long address = slotAddress((home + probes) & mask);
+            long current = getLongVolatile(address);
+            if (current == 0) {
+                if (size >= maxKeys) {
+                    return FULL;
+                }
+                // 空槽位的状态为 0，即新 key 的状态
+                extend(probes);
+                putLongVolatile(address, key);
+                size++;
+                return address + 8;
+            }
+            long state = getLongVolatile(address + 8);
+            if (state == STALE) {
+                if (size < maxKeys) {
+                    extend(probes);
+                    reuse(address, key, now);
+                    size++;
+                    return address + 8;
+                }
+            } else if (isIdle(state, now) && compareAndSwapLong(address + 8, state, STALE)) {
+                // 空闲的槽位直接换成新 key，key 数不变；CAS 失败说明旧 key 刚刚更新了状态，不再空闲
+                extend(probes);
+                reuse(address, key, now);
+                return address + 8;
+            }
+        }
+        return FULL;
+    }
+
+    // 在写入 key 之前扩大查找的探测距离
+    private void extend(long probes) {
+        if (probes > maxDistance) {
+            maxDistance = probes;
+        }
+    }
+
+    // 先写 key 再写状态：读到新状态的线程一定也能读到新 key
+    private void reuse(long address, long key, long now) {
+        putLongVolatile(address, key);
+        putLongVolatile(address + 8, now << TIME_SHIFT | initialBits);
+    }
+
+    // 持有插入锁，从上次的位置继续检查 SWEEP_SLOTS 个槽位，删除空闲的 key，返回是否删除了 key
+    private boolean sweep(long now) {
+        long removed = 0;
+        for (int i = 0; i < SWEEP_SLOTS && i <= mask; i++) {
+            long address = slotAddress(hand);
+            hand = (hand + 1) & mask;
+            long state = getLongVolatile(address + 8);
+            if (getLongVolatile(address) != 0 && isIdle(state, now) && compareAndSwapLong(address + 8, state, STALE)) {
+                removed++;
+            }
+        }
+        size -= removed;
+        if (removed == 0) {
+            fruitlessSweep = now;
+        }
+        return removed > 0;
+    }
+
+    private boolean insertZeroKey() {
+        insertLock.lock();
+        try {
+            // key 0 的槽位用前 8 字节标记是否已分配
+            if (getLongVolatile(zeroKeyAddress) == 0) {
+                if (size >= maxKeys) {
+                    return false;
+                }
+                putLongVolatile(zeroKeyAddress, 1);
+                size++;
+            }
+            return true;
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    // 新 key 的状态为 0，不删除；墓碑的状态为 STALE
+    private boolean isIdle(long state, long now) {
+        return state != 0 && state != STALE && now - (state >>> TIME_SHIFT) >= idleMillis;
+    }
+
+    /**
+     * 读取 key 的状态
+     *
+     * @param address {@link #stateAddress} 返回的地址
+     * @return 状态；key 已被删除或者槽位已经属于其他 key 时返回 {@link #STALE}，调用方需要重新查找
+     */
+    static long getState(long address, long key) {
+        long state = getLongVolatile(address);
+        // 先读状态再读 key：读到新 key 的状态时一定也能读到新 key；key 0 的槽位不会被删除
+        if (state == STALE || (key != 0 && getLongVolatile(address - 8) != key)) {
+            return STALE;
+        }
+        return state;
+    }
+
+    static boolean compareAndSetState(long address, long expect, long update) {
+        return compareAndSwapLong(address, expect, update);
+    }
+
+    long size() {
+        return size;
+    }
+
+    private long slotAddress(long index) {
+        return addresses[(int) (index >>> SLAB_SHIFT)] + (index & ((1L << SLAB_SHIFT) - 1)) * SLOT_SIZE;
+    }
+
+    // murmur3 fmix64，打散相邻 key
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static long bufferAddress(ByteBuffer buffer) {
+        try {
+            return (long) GET_LONG.invokeExact((Object) buffer, ADDRESS_OFFSET);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    private static long getLongVolatile(long address) {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    private static void putLongVolatile(long address, long value) {
+        try {
+            PUT_LONG_VOLATILE.invokeExact((Object) null, address, value);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    private static boolean compareAndSwapLong(long address, long expect, long update) {
+        try {
+            return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address, expect, update);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    // Unsafe 的这些方法不会抛出受检异常
+    private static RuntimeException propagate(Throwable e) {
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,144 @@
+package com.camps;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 堆外按 key 令牌桶限流
+ * <p>
+ * 与 {@link LockFreeTokenBucketLimiter} 使用相同的状态编码：上次生成令牌时间（毫秒，40 位）和当前令牌数（24 位）
+ * 打包进一个 long，生成的令牌数同样按创建时刻对齐计算，但状态不在对象中，而是保存在 {@link OffHeapSlab} 的堆外槽位里，每个 key 只占 16 字节，
+ * 不产生任何堆对象。5000 万个 key 约占用 1 GB 直接内存（需要相应调大 -XX:MaxDirectMemorySize）。
+ * <p>
+ * 新 key 的令牌桶是满的，与 {@link com.camps.distributed.LimiterCommands#tokenBucketAcquireAsync} 一致。
+ * 令牌桶从空到满的时间内没有补充过令牌的 key 已经装满，可以被删除，槽位留给新 key；
+ * 被删除的 key 再次访问时重新创建的令牌桶同样是满的，与没有被删除时的结果相同。
+ * key 数达到 maxKeys 并且没有可以删除的 key 时，新 key 的请求立即限流。
+ */
+public class OffHeapTokenBucketStore {
+    private static final int TOKEN_BITS = OffHeapSlab.TIME_SHIFT; // 令牌数占低 24 位，时间的位置与槽位表约定的一致
+    private static final long TOKEN_MASK = LockFreeTokenBucketLimiter.MAX_CAPACITY;
+
+    private final int rate; // 令牌产生的速度，即每秒生成多少个令牌
+    private final int capacity; // 令牌桶容量，最多可存储令牌数
+    private final long fillMillis; // 令牌桶从空到满需要的时间，单位为毫秒
+    private final TimeSource timeSource; // 时钟
+    private final long origin; // 时间戳以此为基准，状态中的时间从 1 开始，0 表示尚未初始化的新 key
+    private final OffHeapSlab slab; // 堆外槽位表
+
+    public OffHeapTokenBucketStore(int rate, int capacity, long maxKeys) {
+        this(rate, capacity, maxKeys, TimeSource.SYSTEM);
+    }
+
+    public OffHeapTokenBucketStore(int rate, int capacity, long maxKeys, TimeSource timeSource) {
+        if (capacity < 0 || capacity > LockFreeTokenBucketLimiter.MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be between 0 and " + LockFreeTokenBucketLimiter.MAX_CAPACITY);
+        }
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
+        this.rate = rate;
+        this.capacity = capacity;
+        this.fillMillis = (capacity * 1000L + rate - 1) / rate;
+        this.timeSource = timeSource;
+        this.origin = timeSource.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1);
+        this.slab = new OffHeapSlab(maxKeys, Math.max(1, fillMillis), capacity);
+    }
+
+    public boolean tryAcquire(long key) {
+        return tryAcquire(key, 1);
+    }
+
+    public boolean tryAcquire(long key, int permits) {
+        Preconditions.checkPermits(permits);
+        long now = currentMillis();
+        long address = slab.stateAddress(key, now);
+        for (;;) {
+            if (address == OffHeapSlab.NOT_FOUND) {
+                return false; // 没有可用的槽位，限流
+            }
+            long current = OffHeapSlab.getState(address, key);
+            if (current == OffHeapSlab.STALE) {
+                address = slab.stateAddress(key, now); // key 已被删除
+                continue;
+            }
+            long lastTime = current == 0 ? now : current >>> TOKEN_BITS;
+            int currentTokenNum = current == 0 ? capacity : (int) (current & TOKEN_MASK);
+            int tokenCount = tokenCount(lastTime, now);
+            if (tokenCount > 0) {
+                currentTokenNum = (int) Math.min((long) currentTokenNum + tokenCount, capacity);
+                lastTime = now;
+            }
+            if (currentTokenNum < permits) {
+                // 新 key 记录首次访问时间和满的令牌桶
+                if (current == 0) {
+                    OffHeapSlab.compareAndSetState(address, 0, pack(lastTime, currentTokenNum));
+                }
+                return false;
+            }
+            if (OffHeapSlab.compareAndSetState(address, current, pack(lastTime, currentTokenNum - permits))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * key 不存在或已被删除时为满的令牌桶
+     */
+    public int availablePermits(long key) {
+        long address = slab.findStateAddress(key);
+        if (address == OffHeapSlab.NOT_FOUND) {
+            return capacity;
+        }
+        long current = OffHeapSlab.getState(address, key);
+        if (current == 0 || current == OffHeapSlab.STALE) {
+            return capacity;
+        }
+        int currentTokenNum = (int) (current & TOKEN_MASK);
+        return (int) Math.min((long) currentTokenNum + tokenCount(current >>> TOKEN_BITS, currentMillis()), capacity);
+    }
+
+    /**
+     * 已保存的 key 数
+     */
+    public long size() {
+        return slab.size();
+    }
+
+    private long currentMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeSource.nanoTime() - origin);
+    }
+
+    private int tokenCount(long lastTime, long now) {
+        if (now <= lastTime) {
+            return 0;
+        }
+        // 状态中的时间比创建后经过的毫秒数多 1，减去后与 LockFreeTokenBucketLimiter 按同样的时刻对齐
+        return now - lastTime >= fillMillis ? capacity
+                : (int) (LockFreeTokenBucketLimiter.generatedTokens(now - 1, rate)
+                - LockFreeTokenBucketLimiter.generatedTokens(lastTime - 1, rate));
+    }
+
+    private static long pack(long lastTime, int tokens) {
+        return (lastTime << TOKEN_BITS) | tokens;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("=================堆外按 key 令牌桶算法=================");
+        // 默认 5000 万个 key，约 1 GB 直接内存，直接内存上限默认与最大堆内存相同，不够时调大 -XX:MaxDirectMemorySize
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 50_000_000;
+        OffHeapTokenBucketStore store = new OffHeapTokenBucketStore(10, 10, keys);
+        Runtime runtime = Runtime.getRuntime();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long begin = System.nanoTime();
+        for (long key = 0; key < keys; key++) {
+            store.tryAcquire(key);
+        }
+        long elapsed = System.nanoTime() - begin;
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        // 令牌桶 1 秒装满，1 秒前访问过的 key 被删除，槽位留给后来的 key
+        System.out.printf("%,d 个 key 用时 %d ms，平均 %d ns/key，堆内存变化 %,d KB，当前保存 %,d 个 key\n",
+                keys, TimeUnit.NANOSECONDS.toMillis(elapsed), elapsed / keys, (heapAfter - heapBefore) >> 10, store.size());
+        System.out.println("------------------------------------------");
+    }
+}
@@ -0,0 +1,23 @@
+package com.camps;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * 阻塞获取许可时挂起当前线程
+ * <p>
+ * Java 8 版本直接调用 {@link LockSupport#parkNanos(Object, long)}。在 Java 21 上运行时，
+ * 多版本 jar 中 META-INF/versions/21 下的实现会替换本类，短暂等待时平台线程自旋、虚拟线程让出载体线程，不经过定时挂起。
+ */
+final class Parker {
+
+    private Parker() {
+    }
+
+    /**
+     * 挂起当前线程最多 nanos 纳秒；可能因为 unpark、中断或虚假唤醒提前返回，调用方需要重新检查等待条件
+     */
+    static void parkNanos(Object blocker, long nanos) {
+        LockSupport.parkNanos(blocker, nanos);
+    }
+}
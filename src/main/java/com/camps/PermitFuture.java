@@ -0,0 +1,67 @@
+package com.camps;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 异步获取许可的结果
+ * <p>
+ * 许可在创建时已经预约，到可以执行的时刻由 {@link HashedWheelTimer} 完成。
+ * 在此之前被取消或以异常结束时，同时取消定时任务，预约的许可归还给限流器；已经完成后再取消不会归还。
+ */
+final class PermitFuture extends CompletableFuture<Void> implements Runnable {
+    private final RateLimiter limiter; // 预约许可的限流器
+    private final int permits; // 预约的许可数
+    private volatile HashedWheelTimer.Timeout timeout; // 完成 future 的定时任务
+
+    private PermitFuture(RateLimiter limiter, int permits) {
+        this.limiter = limiter;
+        this.permits = permits;
+    }
+
+    /**
+     * 返回在 waitNanos 纳秒后完成的 future，waitNanos 为 0 时返回已完成的 future
+     */
+    static CompletableFuture<Void> schedule(RateLimiter limiter, int permits, long waitNanos) {
+        if (waitNanos <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        PermitFuture future = new PermitFuture(limiter, permits);
+        future.timeout = HashedWheelTimer.shared().schedule(future, waitNanos, TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    // 到期，由定时器线程调用
+    @Override
+    public void run() {
+        complete(null);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            abandon();
+        }
+        return cancelled;
+    }
+
+    @Override
+    public boolean completeExceptionally(Throwable ex) {
+        boolean completed = super.completeExceptionally(ex);
+        if (completed) {
+            abandon();
+        }
+        return completed;
+    }
+
+    // 未到期就结束，取消定时任务并归还许可
+    private void abandon() {
+        HashedWheelTimer.Timeout scheduled = timeout;
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+        limiter.refund(permits);
+    }
+}
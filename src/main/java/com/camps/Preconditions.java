@@ -0,0 +1,30 @@
+package com.camps;
+
+
+/**
+ * 参数校验
+ */
+final class Preconditions {
+    private Preconditions() {
+    }
+
+    static void checkPermits(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+    }
+
+    static void checkBatchSize(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("batch size must not be negative: " + n);
+        }
+    }
+
+    static void checkCosts(long[] costs) {
+        for (int i = 0; i < costs.length; i++) {
+            if (costs[i] <= 0) {
+                throw new IllegalArgumentException("costs[" + i + "] must be positive: " + costs[i]);
+            }
+        }
+    }
+}
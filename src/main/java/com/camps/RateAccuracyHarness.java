@@ -0,0 +1,85 @@
+package com.camps;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 限流速率准确性验证
+ * <p>
+ * 以远高于配置速率的频率持续请求，统计令牌桶和漏桶实际放行速率与配置速率的偏差：
+ * <ul>
+ *     <li>模拟：使用 {@link ManualTimeSource}，每隔固定纳秒数请求一次，结果确定，可重复；</li>
+ *     <li>实测：使用系统时钟，单线程持续请求一段时间。</li>
+ * </ul>
+ */
+public class RateAccuracyHarness {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final int[] RATES = {1_000, 10_000, 100_000, 1_000_000};
+
+    /**
+     * 模拟时钟下，每隔 intervalNanos 请求一次，返回 duration 内每秒放行的请求数
+     */
+    public static double simulatedRate(RateLimiter limiter, ManualTimeSource clock, long intervalNanos, Duration duration) {
+        long steps = duration.toNanos() / intervalNanos;
+        long admitted = 0;
+        for (long i = 0; i < steps; i++) {
+            clock.advanceNanos(intervalNanos);
+            if (limiter.tryAcquire()) {
+                admitted++;
+            }
+        }
+        return admitted * (double) NANOS_PER_SECOND / (steps * intervalNanos);
+    }
+
+    /**
+     * 系统时钟下，单线程持续请求 duration，返回每秒放行的请求数
+     */
+    public static double sustainedRate(RateLimiter limiter, Duration duration) {
+        long begin = System.nanoTime();
+        long deadline = begin + duration.toNanos();
+        long admitted = 0;
+        long now;
+        do {
+            if (limiter.tryAcquire()) {
+                admitted++;
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        return admitted * (double) NANOS_PER_SECOND / (now - begin);
+    }
+
+    private static void report(String name, int rate, double simulated, double sustained) {
+        System.out.printf("%-20s 配置 %,10d/s  模拟 %,12.1f/s (%+.3f%%)  实测 %,12.1f/s (%+.3f%%)\n", name, rate,
+                simulated, (simulated - rate) * 100 / rate, sustained, (sustained - rate) * 100 / rate);
+    }
+
+    /**
+     * 运行参数：模拟时长（秒，默认 10）和实测时长（秒，默认 2），长时间验证时可以调大，例如 3600 60
+     */
+    public static void main(String[] args) {
+        Duration simulatedDuration = Duration.ofSeconds(args.length > 0 ? Long.parseLong(args[0]) : 10);
+        Duration sustainedDuration = Duration.ofSeconds(args.length > 1 ? Long.parseLong(args[1]) : 2);
+        System.out.println("=================限流速率准确性=================");
+        for (int rate : RATES) {
+            // 请求间隔约为令牌生成间隔的 0.3 倍且不能整除，请求始终多于令牌，令牌桶不会装满，漏桶始终是满的
+            long interval = NANOS_PER_SECOND * 3 / 10 / rate + 7;
+            // 桶容量为 100ms 的令牌，避免实测时 GC 等停顿期间令牌桶装满丢弃令牌
+            int capacity = Math.max(10, rate / 10);
+            ManualTimeSource clock = new ManualTimeSource();
+            double simulated = simulatedRate(new TokenBucketLimiter(rate, capacity, clock), clock, interval, simulatedDuration);
+            double sustained = sustainedRate(new TokenBucketLimiter(rate, capacity), sustainedDuration);
+            report("TokenBucketLimiter", rate, simulated, sustained);
+            // 漏桶初始为空，先装满再统计，否则初始突发的 capacity 个请求会计入放行速率，之后放行的速率就是漏出的速率
+            clock = new ManualTimeSource();
+            LeakyBucketLimiter leaky = new LeakyBucketLimiter(rate, capacity, clock);
+            leaky.tryAcquire(capacity);
+            simulated = simulatedRate(leaky, clock, interval, simulatedDuration);
+            leaky = new LeakyBucketLimiter(rate, capacity);
+            leaky.tryAcquire(capacity);
+            sustained = sustainedRate(leaky, sustainedDuration);
+            report("LeakyBucketLimiter", rate, simulated, sustained);
+        }
+        System.out.println("------------------------------------------");
+    }
+}
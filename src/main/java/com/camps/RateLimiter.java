@@ -0,0 +1,114 @@
+package com.camps;
+
+import java.util.BitSet;
+
+/**
+ * 限流器统一接口
+ * <p>
+ * 固定窗口、滑动窗口、漏桶、令牌桶等算法都实现该接口，调用方可以在不修改代码的情况下替换算法，
+ * 也可以在其之上统一实现监控、缓存等装饰器。
+ */
+public interface RateLimiter {
+
+    /**
+     * 尝试获取 1 个许可
+     *
+     * @return true 表示请求通过，false 表示被限流
+     */
+    default boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * 尝试一次性获取多个许可，要么全部获取成功，要么一个都不获取
+     *
+     * @param permits 许可数，必须大于 0
+     * @return true 表示请求通过，false 表示被限流
+     */
+    boolean tryAcquire(int permits);
+
+    /**
+     * 批量放行 n 个各占 1 个许可的请求，按顺序放行前面的请求，直到许可不够
+     * <p>
+     * 默认实现逐个调用 {@link #tryAcquire()}；{@link FixedLimiter}、{@link SlidingLimiter}、{@link TokenBucketLimiter}
+     * 在一次加锁、一次读时钟内完成整批判断和状态更新。
+     *
+     * @param n 请求数，不能为负数
+     * @return 放行的请求数，即前多少个请求通过
+     */
+    default int allowBatch(int n) {
+        Preconditions.checkBatchSize(n);
+        int admitted = 0;
+        while (admitted < n && tryAcquire()) {
+            admitted++;
+        }
+        return admitted;
+    }
+
+    /**
+     * 批量判断一组代价不同的请求，按顺序逐个判断：剩余许可够就放行，不够就限流并继续判断后面代价更小的请求
+     *
+     * @param costs 每个请求消耗的许可数，必须大于 0
+     * @param out   先被清空，放行的请求对应的位被置为 1
+     * @return 放行的请求数
+     */
+    default int allowEach(long[] costs, BitSet out) {
+        Preconditions.checkCosts(costs);
+        out.clear();
+        int admitted = 0;
+        for (int i = 0; i < costs.length; i++) {
+            if (costs[i] <= Integer.MAX_VALUE && tryAcquire((int) costs[i])) {
+                out.set(i);
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * 当前还可以获取的许可数，只查询状态，不消耗许可，也不分配对象
+     */
+    int availablePermits();
+
+    /**
+     * 是否支持 {@link #refund(int)}
+     * <p>
+     * 部分成功时需要归还许可的组合（{@link HierarchicalRateLimiter}、集中式限流的多 key 命令和租借）
+     * 在构造或执行前检查，不会在已经获取了一部分许可之后才发现无法归还。
+     */
+    default boolean supportsRefund() {
+        return false;
+    }
+
+    /**
+     * 归还之前获取或预约的许可，用于请求被取消或后续处理失败的场景
+     *
+     * @throws UnsupportedOperationException 限流算法不支持归还许可，即 {@link #supportsRefund()} 为 false
+     */
+    default void refund(int permits) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support refund");
+    }
+
+    /**
+     * 当前的计数周期编号，与 {@link #refund(int, long)} 配合使用
+     * <p>
+     * 固定窗口、滑动窗口的计数随窗口滚动，许可获取后窗口已经滚动时，归还的许可不能计入新的窗口。
+     * 调用方在获取许可之前读取周期编号，归还时一并传入：窗口恰好在读取和获取之间滚动时，归还会被忽略，
+     * 只会少放行，不会多放行。令牌桶、漏桶等没有窗口的算法返回 0。
+     */
+    default long epoch() {
+        return 0;
+    }
+
+    /**
+     * 归还在 epoch 周期内获取的许可；对应的窗口已经过去时许可已随窗口失效，忽略本次归还
+     * <p>
+     * 默认实现忽略 epoch，调用 {@link #refund(int)}。
+     *
+     * @param epoch 获取许可之前读取的 {@link #epoch()}
+     * @throws UnsupportedOperationException 限流算法不支持归还许可，即 {@link #supportsRefund()} 为 false
+     */
+    default void refund(int permits, long epoch) {
+        refund(permits);
+    }
+}
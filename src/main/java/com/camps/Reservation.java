@@ -0,0 +1,52 @@
+package com.camps;
+
+
+/**
+ * 许可预约
+ * <p>
+ * 由 {@link TokenBucketLimiter#reserve(int, Reservation)} 或 {@link LeakyBucketLimiter#reserve(int, Reservation)} 填充，
+ * 记录预约的许可数和可以执行请求的时刻。许可在预约时已经扣除，调用方在 {@link #delayNanos()} 之后执行请求，
+ * 例如把它作为 Retry-After 返回，或交给调度器延迟执行；不再执行请求时调用 {@link #cancel()} 归还许可。
+ * <p>
+ * 同一个对象可以反复用于多次预约，避免每次预约都分配对象；对象本身不是线程安全的。
+ */
+public final class Reservation {
+    private RateLimiter limiter; // 预约许可的限流器
+    private TimeSource timeSource; // 限流器使用的时钟
+    private int permits; // 预约的许可数
+    private long readyAt; // 可以执行请求的时刻
+    private boolean cancelled;
+
+    void set(RateLimiter limiter, TimeSource timeSource, int permits, long readyAt) {
+        this.limiter = limiter;
+        this.timeSource = timeSource;
+        this.permits = permits;
+        this.readyAt = readyAt;
+        this.cancelled = false;
+    }
+
+    public int permits() {
+        return permits;
+    }
+
+    /**
+     * 距离可以执行请求还需要等待的纳秒数，0 表示可以立即执行
+     */
+    public long delayNanos() {
+        return Math.max(0, readyAt - timeSource.nanoTime());
+    }
+
+    /**
+     * 取消预约并归还许可；请求已经执行后不应再取消
+     *
+     * @return true 表示本次调用归还了许可，重复取消返回 false
+     */
+    public boolean cancel() {
+        if (cancelled || limiter == null) {
+            return false;
+        }
+        cancelled = true;
+        limiter.refund(permits);
+        return true;
+    }
+}
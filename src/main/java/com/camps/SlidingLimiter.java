@@ -2,11 +2,10 @@ package com.camps;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.time.format.DateTimeFormatter;
-import java.util.LinkedList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -14,62 +13,320 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 滑动窗口限流
+ * <p>
+ * 支持两种模式，见 {@link Mode}：
+ * <ul>
+ *     <li>{@link Mode#LOG}：精确的滑动日志。请求时间保存在预先分配、长度为 maxRequests 的 long 环形数组中：
+ *     新请求写入队尾，过期请求从队头移出，请求路径上不分配对象，每个请求最多被写入和移出各一次，
+ *     内存占用固定为 8 × maxRequests 字节。</li>
+ *     <li>{@link Mode#COUNTER}：近似的滑动窗口计数器。只保存上一个和当前固定窗口的请求数，
+ *     每个限流器的时间和内存都是 O(1)，与 maxRequests 无关。</li>
+ * </ul>
+ * 批量处理时使用 {@link #allowBatch(int)} 和 {@link #allowEach(long[], BitSet)}，整批请求只加锁、读时钟和移除过期请求一次，
+ * LOG 模式下放行的请求时间成段写入环形数组。
  */
-public class SlidingLimiter {
-    private final Duration windowSize; // 窗口小周期大小
+public class SlidingLimiter implements RateLimiter {
+
+    /**
+     * 滑动窗口的实现方式
+     */
+    public enum Mode {
+        /**
+         * 滑动日志，记录窗口内每个请求的时间，结果精确
+         */
+        LOG,
+        /**
+         * 滑动窗口计数器，用 上一个窗口请求数 × 重叠比例 + 当前窗口请求数 估算滑动窗口内的请求数。
+         * <p>
+         * 设当前时刻之前一个窗口大小的区间与上一个固定窗口的重叠比例为 f，上一个窗口的请求数为 p。
+         * 估算值假设上一个窗口内的请求均匀分布，与滑动日志的精确值相比误差在 [-p × f, p × (1 - f)] 之间：
+         * 最多比精确值多放行 p × (1 - f) 个请求（上一个窗口的请求集中在窗口末尾时），
+         * 最多比精确值提前 p × f 个请求开始限流（集中在窗口开头时）。p 不超过 maxRequests，
+         * 因此任意一个窗口大小的区间内放行的请求数不超过 2 × maxRequests；请求均匀到达时误差趋近于 0。
+         */
+        COUNTER
+    }
+
+    private final long windowSize; // 窗口小周期大小，单位为纳秒
     private final int maxRequests; // 最大请求数
-    private final LinkedList<LocalDateTime> requestTimeList; // 窗口小周期内的请求时间
+    private final Mode mode; // 实现方式
+    private final TimeSource timeSource; // 时钟
+    private final long[] requestTimes; // 窗口小周期内的请求时间，环形数组，仅 LOG 模式使用
+    private int head; // 最早一个请求在环形数组中的下标
+    private int size; // 窗口小周期内的请求数
+    private final long origin; // 固定窗口的起点，仅 COUNTER 模式使用
+    private long windowIndex; // 当前固定窗口的序号
+    private int previousCount; // 上一个固定窗口的请求数
+    private int currentCount; // 当前固定窗口的请求数
     private final Lock requestsLock; // 请求锁
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     public SlidingLimiter(Duration windowSize, int maxRequests) {
-        this.windowSize = windowSize;
+        this(windowSize, maxRequests, Mode.LOG);
+    }
+
+    public SlidingLimiter(Duration windowSize, int maxRequests, TimeSource timeSource) {
+        this(windowSize, maxRequests, Mode.LOG, timeSource);
+    }
+
+    public SlidingLimiter(Duration windowSize, int maxRequests, Mode mode) {
+        this(windowSize, maxRequests, mode, TimeSource.SYSTEM);
+    }
+
+    public SlidingLimiter(Duration windowSize, int maxRequests, Mode mode, TimeSource timeSource) {
+        this.windowSize = windowSize.toNanos();
         this.maxRequests = maxRequests;
-        this.requestTimeList = new LinkedList<>();
+        this.mode = mode;
+        this.timeSource = timeSource;
+        this.requestTimes = mode == Mode.LOG ? new long[maxRequests] : null;
+        this.origin = timeSource.nanoTime();
         this.requestsLock = new ReentrantLock();
     }
 
     public boolean allowRequest() {
+        return tryAcquire();
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        Preconditions.checkPermits(permits);
         requestsLock.lock();
         try {
-            LocalDateTime currentTime = LocalDateTime.now();
-            // 移除过期的请求
-            while (!requestTimeList.isEmpty() && Duration.between(requestTimeList.peek(), currentTime).compareTo(windowSize) > 0) {
-                requestTimeList.poll();
+            long currentTime = timeSource.nanoTime();
+            if (mode == Mode.COUNTER) {
+                // 估算的请求数加上本次请求数超过阈值，限流
+                if (estimate(currentTime) > maxRequests - permits) {
+                    return false;
+                }
+                currentCount += permits;
+                return true;
             }
+            evictExpired(currentTime);
             // 检查请求数是否超过阈值
-            if (requestTimeList.size() >= maxRequests) {
+            if (size > maxRequests - permits) {
                 return false;
             }
-            requestTimeList.add(currentTime);
+            append(currentTime, permits);
             return true;
         } finally {
             requestsLock.unlock();
         }
     }
 
+    @Override
+    public int allowBatch(int n) {
+        Preconditions.checkBatchSize(n);
+        requestsLock.lock();
+        try {
+            long currentTime = timeSource.nanoTime();
+            int admitted = (int) Math.min(n, available(currentTime));
+            consume(currentTime, admitted);
+            return admitted;
+        } finally {
+            requestsLock.unlock();
+        }
+    }
+
+    @Override
+    public int allowEach(long[] costs, BitSet out) {
+        Preconditions.checkCosts(costs);
+        requestsLock.lock();
+        try {
+            long currentTime = timeSource.nanoTime();
+            consume(currentTime, (int) Batches.admitEach(costs, out, available(currentTime)));
+            return out.cardinality();
+        } finally {
+            requestsLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean supportsRefund() {
+        return true;
+    }
+
+    /**
+     * 归还在当前时刻获取的许可：LOG 模式移除最近放行的 permits 个请求，COUNTER 模式从当前固定窗口的请求数中扣除；
+     * 许可可能在更早的时刻获取时使用 {@link #refund(int, long)}
+     */
+    @Override
+    public void refund(int permits) {
+        Preconditions.checkPermits(permits);
+        requestsLock.lock();
+        try {
+            long currentTime = timeSource.nanoTime();
+            if (mode == Mode.COUNTER) {
+                estimate(currentTime);
+                currentCount = Math.max(0, currentCount - permits);
+            } else {
+                evictExpired(currentTime);
+                size = Math.max(0, size - permits);
+            }
+        } finally {
+            requestsLock.unlock();
+        }
+    }
+
+    /**
+     * LOG 模式为当前时刻，COUNTER 模式为当前固定窗口的序号
+     */
+    @Override
+    public long epoch() {
+        long currentTime = timeSource.nanoTime();
+        return mode == Mode.COUNTER ? (currentTime - origin) / windowSize : currentTime;
+    }
+
+    /**
+     * 归还在 epoch 之后获取的许可
+     * <ul>
+     *     <li>LOG 模式：epoch 已经滑出窗口时忽略；否则移除时间不早于 epoch 的最早 permits 个请求。
+     *     实际归还的请求不早于被移除的请求，剩下的请求过期得更晚，不会多放行；</li>
+     *     <li>COUNTER 模式：许可在当前固定窗口获取时从当前窗口扣除，在上一个窗口获取时从上一个窗口扣除，
+     *     更早的窗口已经不参与估算，忽略。epoch 是上一个窗口时许可也可能在当前窗口获取，
+     *     从上一个窗口扣除按重叠比例折算，扣除得更少，不会多放行。</li>
+     * </ul>
+     */
+    @Override
+    public void refund(int permits, long epoch) {
+        Preconditions.checkPermits(permits);
+        requestsLock.lock();
+        try {
+            long currentTime = timeSource.nanoTime();
+            if (mode == Mode.COUNTER) {
+                estimate(currentTime);
+                if (epoch == windowIndex) {
+                    currentCount = Math.max(0, currentCount - permits);
+                } else if (epoch == windowIndex - 1) {
+                    previousCount = Math.max(0, previousCount - permits);
+                }
+            } else {
+                evictExpired(currentTime);
+                if (currentTime - epoch <= windowSize) {
+                    removeSince(epoch, permits);
+                }
+            }
+        } finally {
+            requestsLock.unlock();
+        }
+    }
+
+    // 移除时间不早于 since 的最早 permits 个请求，之后的请求依次前移，环形数组保持按时间排序
+    private void removeSince(long since, int permits) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (requestTimes[slot(mid)] - since < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int n = Math.min(permits, size - low);
+        for (int i = low; i + n < size; i++) {
+            requestTimes[slot(i)] = requestTimes[slot(i + n)];
+        }
+        size -= n;
+    }
+
+    // 距离最早一个请求 offset 个位置的请求在环形数组中的下标
+    private int slot(int offset) {
+        int index = head + offset;
+        return index >= maxRequests ? index - maxRequests : index;
+    }
+
+    // 当前还可以放行的请求数；逐个判断时估算值 + 已放行数 + 本次请求数不超过阈值，等价于总数不超过 阈值 - 估算值 向下取整
+    private long available(long currentTime) {
+        if (mode == Mode.COUNTER) {
+            return Math.max(0, (long) Math.floor(maxRequests - estimate(currentTime)));
+        }
+        evictExpired(currentTime);
+        return maxRequests - size;
+    }
+
+    // 记录放行的请求
+    private void consume(long currentTime, int permits) {
+        if (mode == Mode.COUNTER) {
+            currentCount += permits;
+        } else {
+            append(currentTime, permits);
+        }
+    }
+
+    // 在环形数组队尾写入 permits 个请求时间，跨过数组末尾时分两段写入
+    private void append(long currentTime, int permits) {
+        int tail = head + size;
+        if (tail >= maxRequests) {
+            tail -= maxRequests;
+        }
+        int first = Math.min(permits, maxRequests - tail);
+        Arrays.fill(requestTimes, tail, tail + first, currentTime);
+        Arrays.fill(requestTimes, 0, permits - first, currentTime);
+        size += permits;
+    }
+
+    @Override
+    public int availablePermits() {
+        requestsLock.lock();
+        try {
+            long currentTime = timeSource.nanoTime();
+            if (mode == Mode.COUNTER) {
+                return Math.max(0, maxRequests - (int) Math.ceil(estimate(currentTime)));
+            }
+            evictExpired(currentTime);
+            return maxRequests - size;
+        } finally {
+            requestsLock.unlock();
+        }
+    }
+
+    // 移除过期的请求
+    private void evictExpired(long currentTime) {
+        while (size > 0 && currentTime - requestTimes[head] > windowSize) {
+            if (++head == maxRequests) {
+                head = 0;
+            }
+            size--;
+        }
+    }
+
+    // 滚动固定窗口，返回滑动窗口内的估算请求数
+    private double estimate(long currentTime) {
+        long elapsed = currentTime - origin;
+        long index = elapsed / windowSize;
+        if (index != windowIndex) {
+            // 刚进入下一个窗口时，当前窗口变为上一个窗口；跨过多个窗口时两个窗口都已过期
+            previousCount = index == windowIndex + 1 ? currentCount : 0;
+            currentCount = 0;
+            windowIndex = index;
+        }
+        // 滑动窗口与上一个固定窗口的重叠比例
+        double overlap = (double) (windowSize - (elapsed - index * windowSize)) / windowSize;
+        return previousCount * overlap + currentCount;
+    }
+
     public static void mockRequest(int n, Duration d, SlidingLimiter limiter) {
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+        CountDownLatch done = new CountDownLatch(n);
 
         for (int i = 0; i < n; i++) {
             int requestId = i + 1;
-            executor.schedule(() -> {
+            HashedWheelTimer.shared().schedule(() -> {
                 String now = LocalDateTime.now().format(formatter);
                 if (limiter.allowRequest()) {
                     System.out.printf("%s 请求通过\n", now);
                 } else {
                     System.out.printf("%s 请求被限流\n", now);
                 }
+                done.countDown();
             }, i * d.toMillis(), TimeUnit.MILLISECONDS);
         }
 
-        executor.shutdown();
         try {
-            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                executor.shutdownNow();
+            if (!done.await(n * d.toMillis() + 5000, TimeUnit.MILLISECONDS)) {
+                System.out.println("等待请求执行超时");
             }
         } catch (InterruptedException e) {
-            executor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -0,0 +1,62 @@
+package com.camps;
+
+import java.time.Duration;
+
+
+/**
+ * 滑动窗口两种模式的内存占用对比
+ * <p>
+ * 为每个 key 创建一个 {@link SlidingLimiter}，统计 1 万、10 万、100 万个 key 时的堆内存占用。
+ * 运行参数为每个窗口允许的最大请求数，默认 100；LOG 模式在 100 万个 key 时需要较大的堆，例如 -Xmx2g。
+ */
+public class SlidingLimiterMemoryBenchmark {
+    private static final int[] KEY_COUNTS = {10_000, 100_000, 1_000_000};
+
+    public static void main(String[] args) {
+        int maxRequests = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        System.out.printf("=================滑动窗口内存占用 (maxRequests=%d)=================\n", maxRequests);
+        for (int keys : KEY_COUNTS) {
+            long log = measure(keys, maxRequests, SlidingLimiter.Mode.LOG);
+            long counter = measure(keys, maxRequests, SlidingLimiter.Mode.COUNTER);
+            System.out.printf("%,9d 个 key  LOG: %s  COUNTER: %s  节省: %s\n",
+                    keys, format(log, keys), format(counter, keys),
+                    log < 0 || counter < 0 ? "-" : String.format("%,d MB", (log - counter) >> 20));
+        }
+        System.out.println("------------------------------------------");
+    }
+
+    // 返回 keys 个限流器占用的字节数，内存不足时返回 -1
+    private static long measure(int keys, int maxRequests, SlidingLimiter.Mode mode) {
+        Duration window = Duration.ofSeconds(1);
+        long before = usedMemory();
+        try {
+            SlidingLimiter[] limiters = new SlidingLimiter[keys];
+            for (int i = 0; i < keys; i++) {
+                limiters[i] = new SlidingLimiter(window, maxRequests, mode);
+            }
+            long after = usedMemory();
+            // 保证测量期间限流器不会被回收
+            if (limiters[keys - 1] == null) {
+                throw new IllegalStateException();
+            }
+            return after - before;
+        } catch (OutOfMemoryError e) {
+            return -1;
+        }
+    }
+
+    private static String format(long bytes, int keys) {
+        if (bytes < 0) {
+            return "内存不足";
+        }
+        return String.format("%,8d MB (%,6d B/key)", bytes >> 20, bytes / keys);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,295 @@
+package com.camps;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * 分段计数的固定窗口限流
+ * <p>
+ * 与 {@link FixedLimiter} 语义一致，但不使用锁，适用于多核机器：
+ * <ul>
+ *     <li>窗口起始时间保存在一个 {@link AtomicLong} 中，窗口到期后由第一个 CAS 成功的线程重置；</li>
+ *     <li>maxRequests 被平均分配给多个计数单元，每个单元独占一个缓存行，线程按线程 id 选择自己的单元计数，
+ *     不同核上的线程很少访问同一个缓存行；</li>
+ *     <li>自己的单元用完后依次借用其他单元的额度，所有单元都用完才限流，因此放行总数严格等于 maxRequests，没有误差。</li>
+ * </ul>
+ * 每个单元的值高 32 位为窗口编号，低 32 位为该窗口内的计数。窗口编号由窗口起始时间推算：
+ * 相邻两次重置至少间隔一个窗口大小，因此编号严格递增，单元中编号较旧的计数视为 0，重置时不需要逐个清零。
+ */
+public class StripedFixedLimiter implements RateLimiter {
+    private static final int PADDING = 16; // 每个单元占 16 个 long，即 128 字节，避免伪共享和相邻缓存行预取
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    private final long windowSize; // 窗口大小，单位为纳秒
+    private final int maxRequests; // 最大请求数
+    private final TimeSource timeSource; // 时钟
+    private final long origin; // 窗口编号的起点
+    private final AtomicLong windowStart; // 当前窗口起始时间
+    private final int stripes; // 计数单元数，2 的幂
+    private final int[] quotas; // 每个单元分到的额度
+    private final AtomicLongArray cells; // 计数单元
+    private volatile long exhaustedWindow = -1; // 所有额度都已用完的窗口编号，用于快速限流
+
+    public StripedFixedLimiter(Duration windowSize, int maxRequests) {
+        this(windowSize, maxRequests, Runtime.getRuntime().availableProcessors(), TimeSource.SYSTEM);
+    }
+
+    public StripedFixedLimiter(Duration windowSize, int maxRequests, int concurrency, TimeSource timeSource) {
+        if (maxRequests < 0) {
+            throw new IllegalArgumentException("maxRequests must not be negative: " + maxRequests);
+        }
+        this.windowSize = windowSize.toNanos();
+        this.maxRequests = maxRequests;
+        this.timeSource = timeSource;
+        this.origin = timeSource.nanoTime();
+        this.windowStart = new AtomicLong(origin);
+        // 单元数取不超过并发度和 maxRequests 的最大 2 的幂，保证每个单元至少有 1 个额度
+        int limit = Math.max(1, Math.min(concurrency, maxRequests));
+        this.stripes = Integer.highestOneBit(limit);
+        this.quotas = new int[stripes];
+        for (int i = 0; i < stripes; i++) {
+            quotas[i] = maxRequests / stripes + (i < maxRequests % stripes ? 1 : 0);
+        }
+        this.cells = new AtomicLongArray(stripes * PADDING);
+    }
+
+    public boolean allowRequest() {
+        return tryAcquire();
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        Preconditions.checkPermits(permits);
+        if (permits > maxRequests) {
+            return false;
+        }
+        for (;;) {
+            long window = currentWindow();
+            if (exhaustedWindow == window) {
+                return false; // 当前窗口的额度已用完，限流
+            }
+            int home = homeStripe();
+            int result = acquireWhole(window, home, permits);
+            if (result == STALE) {
+                continue; // 其他线程已经重置了窗口，按新窗口重试
+            }
+            if (result == ACQUIRED) {
+                return true;
+            }
+            // 没有一个单元能单独满足，跨单元凑齐
+            if (permits > 1) {
+                result = acquireSpread(window, home, 0, permits);
+                if (result == STALE) {
+                    continue;
+                }
+                if (result == ACQUIRED) {
+                    return true;
+                }
+            }
+            if (permits == 1) {
+                markExhausted(window);
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean supportsRefund() {
+        return true;
+    }
+
+    /**
+     * 归还在当前窗口内获取的许可，从自己的单元开始依次扣减当前窗口的计数；
+     * 许可可能在之前的窗口获取时使用 {@link #refund(int, long)}
+     */
+    @Override
+    public void refund(int permits) {
+        Preconditions.checkPermits(permits);
+        refundWindow(currentWindow(), permits);
+    }
+
+    /**
+     * 当前窗口的编号
+     */
+    @Override
+    public long epoch() {
+        return currentWindow();
+    }
+
+    /**
+     * 归还在编号为 epoch 的窗口内获取的许可，窗口已经重置时忽略
+     */
+    @Override
+    public void refund(int permits, long epoch) {
+        Preconditions.checkPermits(permits);
+        long window = currentWindow();
+        if (window == epoch) {
+            refundWindow(window, permits);
+        }
+    }
+
+    // 从自己的单元开始依次扣减 window 的计数，最多扣减 permits 个
+    private void refundWindow(long window, int permits) {
+        int home = homeStripe();
+        int remaining = permits;
+        for (int i = 0; i < stripes && remaining > 0; i++) {
+            int index = ((home + i) & (stripes - 1)) * PADDING;
+            for (;;) {
+                long cell = cells.get(index);
+                int used = (int) (cell >>> 32) == (int) window ? (int) (cell & COUNT_MASK) : 0;
+                int n = Math.min(used, remaining);
+                if (n == 0 || cells.compareAndSet(index, cell, pack(window, used - n))) {
+                    remaining -= n;
+                    break;
+                }
+            }
+        }
+        exhaustedWindow = -1;
+    }
+
+    @Override
+    public int availablePermits() {
+        return remaining(currentWindow());
+    }
+
+    // window 内所有单元剩余的额度
+    private int remaining(long window) {
+        int available = 0;
+        for (int i = 0; i < stripes; i++) {
+            long cell = cells.get(i * PADDING);
+            int used = (int) (cell >>> 32) == (int) window ? (int) (cell & COUNT_MASK) : 0;
+            available += Math.max(0, quotas[i] - used);
+        }
+        return available;
+    }
+
+    /**
+     * 标记 window 的额度已用完
+     * <p>
+     * 扫描时看到的单元可能只是暂时用完：其他线程跨单元凑许可失败后正在归还，或者正在 refund。
+     * 写入标记后重新统计一遍剩余额度，还有剩余时撤销标记。归还的一方在扣减计数之后清除标记，
+     * 如果重新统计时没有看到它的扣减，它清除标记的写入一定在本次写入之后，标记不会一直保留到窗口结束。
+     */
+    private void markExhausted(long window) {
+        exhaustedWindow = window;
+        if (remaining(window) > 0) {
+            exhaustedWindow = -1;
+        }
+    }
+
+    private static final int ACQUIRED = 0;
+    private static final int REJECTED = 1;
+    private static final int STALE = 2;
+
+    // 从自己的单元开始依次尝试，找到一个能单独满足全部许可的单元
+    private int acquireWhole(long window, int home, int permits) {
+        for (int i = 0; i < stripes; i++) {
+            int stripe = (home + i) & (stripes - 1);
+            int taken = take(window, stripe, permits, false);
+            if (taken < 0) {
+                return STALE;
+            }
+            if (taken == permits) {
+                return ACQUIRED;
+            }
+        }
+        return REJECTED;
+    }
+
+    // 从自己之后的第 i 个单元开始各取一部分凑齐 permits 个许可，凑不齐时按相反顺序归还已取的部分。
+    // 每个单元取到的数量保存在递归的栈帧中，不分配对象，递归深度不超过单元数
+    private int acquireSpread(long window, int home, int i, int permits) {
+        if (permits == 0) {
+            return ACQUIRED;
+        }
+        if (i == stripes) {
+            return REJECTED;
+        }
+        int stripe = (home + i) & (stripes - 1);
+        int n = take(window, stripe, permits, true);
+        if (n < 0) {
+            return STALE;
+        }
+        int result = acquireSpread(window, home, i + 1, permits - n);
+        if (result != ACQUIRED && n > 0) {
+            release(window, stripe, n);
+        }
+        return result;
+    }
+
+    /**
+     * 从一个单元中获取许可
+     *
+     * @param partial 为 true 时额度不足也尽量多取，为 false 时要么全部取到要么不取
+     * @return 实际获取的许可数，单元已属于更新的窗口时返回 -1
+     */
+    private int take(long window, int stripe, int permits, boolean partial) {
+        int index = stripe * PADDING;
+        int quota = quotas[stripe];
+        for (;;) {
+            long cell = cells.get(index);
+            int cellWindow = (int) (cell >>> 32);
+            int diff = cellWindow - (int) window;
+            if (diff > 0) {
+                return -1;
+            }
+            int used = diff == 0 ? (int) (cell & COUNT_MASK) : 0;
+            int n = Math.min(permits, quota - used);
+            if (n <= 0 || (n < permits && !partial)) {
+                return 0;
+            }
+            if (cells.compareAndSet(index, cell, pack(window, used + n))) {
+                return n;
+            }
+        }
+    }
+
+    private void release(long window, int stripe, int n) {
+        int index = stripe * PADDING;
+        for (;;) {
+            long cell = cells.get(index);
+            // 窗口已经重置，无需归还
+            if ((int) (cell >>> 32) != (int) window
+                    || cells.compareAndSet(index, cell, pack(window, (int) (cell & COUNT_MASK) - n))) {
+                break;
+            }
+        }
+        exhaustedWindow = -1;
+    }
+
+    // 检查是否需要重置窗口，返回当前窗口编号
+    private long currentWindow() {
+        long now = timeSource.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= windowSize) {
+            // CAS 失败说明其他线程已经重置了窗口
+            windowStart.compareAndSet(start, now);
+            start = windowStart.get();
+        }
+        return (start - origin) / windowSize;
+    }
+
+    private int homeStripe() {
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (stripes - 1);
+    }
+
+    private static long pack(long window, int count) {
+        return (window << 32) | count;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=================分段计数固定窗口算法=================");
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            FixedLimiter lockLimiter = new FixedLimiter(Duration.ofMillis(100), 1_000_000);
+            StripedFixedLimiter stripedLimiter = new StripedFixedLimiter(Duration.ofMillis(100), 1_000_000);
+            double lockOps = ContentionBenchmark.opsPerSecond(threads, 1000, lockLimiter);
+            double stripedOps = ContentionBenchmark.opsPerSecond(threads, 1000, stripedLimiter);
+            System.out.printf("%2d 线程  ReentrantLock: %,14.0f ops/s  分段 CAS: %,14.0f ops/s  (%.2fx)\n",
+                    threads, lockOps, stripedOps, stripedOps / lockOps);
+        }
+        System.out.println("------------------------------------------");
+    }
+}
@@ -0,0 +1,22 @@
+package com.camps;
+
+
+/**
+ * 单调时钟
+ * <p>
+ * 限流器只关心两次请求之间经过的时间，因此统一使用基于 {@link System#nanoTime()} 的单调时钟：
+ * 不受系统时间被 NTP 调整的影响，读取时不分配对象，时间差直接用 long 计算。
+ * 返回值只用于计算时间差，本身没有具体含义。
+ */
+public interface TimeSource {
+
+    /**
+     * 直接读取 {@link System#nanoTime()}
+     */
+    TimeSource SYSTEM = System::nanoTime;
+
+    /**
+     * 当前时间，单位为纳秒
+     */
+    long nanoTime();
+}
@@ -1,10 +1,9 @@
 package com.camps;
 
 import java.time.Duration;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -12,69 +11,295 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 令牌桶限流
+ * <p>
+ * 令牌按纳秒时间差生成，不足一个令牌的部分以 令牌 × 10^9 为单位保存在 {@code tokenFraction} 中，
+ * 下次请求时继续累加，不会因为请求频繁而丢失，高速率下实际放行速率与配置的速率一致。
+ * <p>
+ * 除了立即返回结果的 tryAcquire，还提供阻塞的 {@link #acquire(int)} 和限时的 {@link #tryAcquire(int, long, TimeUnit)}：
+ * 令牌不够时先预支令牌（令牌数变为负数），根据欠下的令牌数算出令牌足够的时刻，释放锁后挂起线程直到该时刻。
+ * 后到的等待者在前面所有等待者欠下的令牌之后排队，唤醒时刻严格按到达顺序先后排列，
+ * 每个线程只在自己的时刻被唤醒一次，不会在每次生成令牌时一起争抢；有等待者时 tryAcquire 也不会插队。
+ * 在 Java 21 上，等待的虚拟线程从载体线程卸载，平台线程等待时间很短时自旋，见 {@link Parker}。
+ * <p>
+ * 批量处理时使用 {@link #allowBatch(int)} 和 {@link #allowEach(long[], BitSet)}，整批请求只加锁、读时钟和生成令牌一次。
+ * <p>
+ * 不能阻塞线程的场景（Netty、WebFlux 的事件循环）使用 {@link #acquireAsync(int)}，排队规则相同，
+ * 由共享的时间轮定时器在令牌足够时完成返回的 future。
  */
-public class TokenBucketLimiter {
+public class TokenBucketLimiter implements RateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
     private final int rate; // 令牌产生的速度，即每秒生成多少个令牌
     private final int capacity; // 令牌桶容量，最多可存储令牌数
-    private int currentTokenNum; // 当前令牌数
-    private LocalDateTime lastTime; // 上次请求时间
+    private final long fillNanos; // 令牌桶从空到满需要的时间，单位为纳秒
+    private final TimeSource timeSource; // 时钟
+    private int currentTokenNum; // 当前令牌数，有线程等待时为负数，表示预支的令牌数
+    private long tokenFraction; // 不足一个令牌的部分，单位为 1/10^9 个令牌
+    private long lastTime; // 上次请求时间
     private final Lock lock; // 请求锁
 
     public TokenBucketLimiter(int rate, int capacity) {
+        this(rate, capacity, TimeSource.SYSTEM);
+    }
+
+    public TokenBucketLimiter(int rate, int capacity, TimeSource timeSource) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
         this.rate = rate;
         this.capacity = capacity;
+        this.fillNanos = capacity * NANOS_PER_SECOND / rate;
+        this.timeSource = timeSource;
         this.currentTokenNum = 0;
-        this.lastTime = LocalDateTime.now();
+        this.lastTime = timeSource.nanoTime();
         this.lock = new ReentrantLock();
     }
 
     public boolean allow() {
+        return tryAcquire();
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        return tryAcquireOrShortfall(permits) == 0;
+    }
+
+    /**
+     * 按请求的代价一次性获取多个令牌，要么全部获取，要么一个都不获取
+     *
+     * @param permits 本次请求消耗的令牌数，必须大于 0；大于桶容量的请求永远不会成功
+     * @return 0 表示获取成功；否则为还差的令牌数，令牌桶状态不变
+     */
+    public int tryAcquireOrShortfall(int permits) {
+        Preconditions.checkPermits(permits);
         lock.lock();
         try {
-            // (本次请求时间 - 上次请求时间) x 令牌生成速率 = 两次请求间隔内生成的令牌数
-            long millisSinceLast = ChronoUnit.MILLIS.between(lastTime, LocalDateTime.now());
-            int tokenCount = (int) (millisSinceLast / 1000.0 * rate);
-            // 生成的令牌大于0，则加入到令牌桶
-            if (tokenCount > 0) {
-                currentTokenNum += tokenCount;
-                lastTime = LocalDateTime.now();
+            refill();
+            // 令牌桶内的令牌足够，则运行请求通过
+            if (currentTokenNum >= permits) {
+                currentTokenNum -= permits;
+                return 0;
             }
-            // 设置令牌桶内的令牌数量最多为容量大小，不能超过容量
-            if (currentTokenNum > capacity) {
-                currentTokenNum = capacity;
+            return (int) Math.min(Integer.MAX_VALUE, (long) permits - currentTokenNum); // 令牌不够，限流
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int allowBatch(int n) {
+        Preconditions.checkBatchSize(n);
+        lock.lock();
+        try {
+            refill();
+            int admitted = Math.min(n, Math.max(0, currentTokenNum));
+            currentTokenNum -= admitted;
+            return admitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int allowEach(long[] costs, BitSet out) {
+        Preconditions.checkCosts(costs);
+        lock.lock();
+        try {
+            refill();
+            currentTokenNum -= (int) Batches.admitEach(costs, out, Math.max(0, currentTokenNum));
+            return out.cardinality();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取令牌，令牌不够时阻塞直到令牌足够
+     *
+     * @param permits 本次请求消耗的令牌数，必须大于 0
+     * @throws InterruptedException 等待期间线程被中断，预支的令牌会归还
+     */
+    public void acquire(int permits) throws InterruptedException {
+        Preconditions.checkPermits(permits);
+        awaitReservation(permits, reserve(permits, Long.MAX_VALUE));
+    }
+
+    /**
+     * 在超时时间内获取令牌
+     * <p>
+     * 如果在超时时间内不可能获取到令牌，立即返回 false，不会预支令牌，也不会等待。
+     *
+     * @param permits 本次请求消耗的令牌数，必须大于 0
+     * @return true 表示获取成功
+     * @throws InterruptedException 等待期间线程被中断，预支的令牌会归还
+     */
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        Preconditions.checkPermits(permits);
+        long waitNanos = reserve(permits, Math.max(0, unit.toNanos(timeout)));
+        if (waitNanos < 0) {
+            return false;
+        }
+        awaitReservation(permits, waitNanos);
+        return true;
+    }
+
+    /**
+     * 异步获取令牌，不阻塞调用线程
+     * <p>
+     * 令牌立即预支，返回的 future 在令牌足够时由共享的时间轮定时器完成（最多晚 1ms），令牌足够时返回已完成的 future。
+     * future 在共享的定时器线程中完成，后续耗时的处理应使用 thenRunAsync 等方法切换到业务线程池。
+     * 完成前调用 {@link CompletableFuture#cancel(boolean)} 会归还预支的令牌。
+     *
+     * @param permits 本次请求消耗的令牌数，必须大于 0
+     */
+    public CompletableFuture<Void> acquireAsync(int permits) {
+        Preconditions.checkPermits(permits);
+        return PermitFuture.schedule(this, permits, reserve(permits, Long.MAX_VALUE));
+    }
+
+    /**
+     * 预约令牌，不等待
+     * <p>
+     * 令牌立即扣除，不够时预支；调用方在返回的纳秒数之后执行请求，不执行时通过 {@link #refund(int)} 归还。
+     *
+     * @param permits 本次请求消耗的令牌数，必须大于 0
+     * @return 需要等待的纳秒数，0 表示可以立即执行
+     */
+    public long reserve(int permits) {
+        Preconditions.checkPermits(permits);
+        return reserve(permits, Long.MAX_VALUE);
+    }
+
+    /**
+     * 预约令牌，不等待，结果写入可复用的 {@link Reservation}，可以通过 {@link Reservation#cancel()} 取消
+     *
+     * @return 传入的 reservation
+     */
+    public Reservation reserve(int permits, Reservation reservation) {
+        Preconditions.checkPermits(permits);
+        long waitNanos = reserve(permits, Long.MAX_VALUE);
+        reservation.set(this, timeSource, permits, timeSource.nanoTime() + waitNanos);
+        return reservation;
+    }
+
+    /**
+     * 预支令牌
+     *
+     * @return 需要等待的纳秒数；需要等待的时间超过 maxWaitNanos 时返回 -1，不预支令牌
+     */
+    private long reserve(int permits, long maxWaitNanos) {
+        lock.lock();
+        try {
+            refill();
+            long remaining = (long) currentTokenNum - permits;
+            long waitNanos = remaining >= 0 ? 0 : nanosToRepay(-remaining);
+            if (waitNanos > maxWaitNanos) {
+                return -1;
             }
-            // 令牌桶内存在令牌，则运行请求通过
-            if (currentTokenNum > 0) {
-                currentTokenNum--;
-                return true;
+            if (remaining < Integer.MIN_VALUE) {
+                throw new IllegalStateException("too many permits reserved: " + remaining);
             }
-            return false; // 没有令牌，限流
+            currentTokenNum = (int) remaining;
+            return waitNanos;
         } finally {
             lock.unlock();
         }
     }
 
+    // 生成 debt 个令牌还需要的纳秒数，已生成的不足一个令牌的部分计算在内
+    private long nanosToRepay(long debt) {
+        long scaled = debt * NANOS_PER_SECOND - tokenFraction;
+        return (scaled + rate - 1) / rate;
+    }
+
+    private void awaitReservation(int permits, long waitNanos) throws InterruptedException {
+        long deadline = timeSource.nanoTime() + waitNanos;
+        long remaining = waitNanos;
+        while (remaining > 0) {
+            Parker.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                refund(permits);
+                throw new InterruptedException();
+            }
+            remaining = deadline - timeSource.nanoTime();
+        }
+    }
+
+    @Override
+    public boolean supportsRefund() {
+        return true;
+    }
+
+    /**
+     * 归还令牌，令牌桶内的令牌数量最多为容量大小
+     */
+    @Override
+    public void refund(int permits) {
+        Preconditions.checkPermits(permits);
+        lock.lock();
+        try {
+            refill();
+            currentTokenNum = (int) Math.min((long) currentTokenNum + permits, capacity);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int availablePermits() {
+        lock.lock();
+        try {
+            refill();
+            return Math.max(0, currentTokenNum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        long now = timeSource.nanoTime();
+        long nanosSinceLast = now - lastTime;
+        lastTime = now;
+        // 间隔超过填满令牌桶的时间，令牌桶已满；有预支的令牌时需要先还清
+        long nanosToFill = currentTokenNum >= 0 ? fillNanos : ((long) capacity - currentTokenNum) * NANOS_PER_SECOND / rate;
+        if (nanosSinceLast >= nanosToFill) {
+            currentTokenNum = capacity;
+            tokenFraction = 0;
+            return;
+        }
+        // (本次请求时间 - 上次请求时间) x 令牌生成速率 + 上次剩余的不足一个令牌的部分 = 可以加入令牌桶的令牌
+        long scaledTokens = nanosSinceLast * rate + tokenFraction;
+        long tokenCount = scaledTokens / NANOS_PER_SECOND;
+        tokenFraction = scaledTokens % NANOS_PER_SECOND;
+        // 令牌桶内的令牌数量最多为容量大小，不能超过容量，桶满时多余的部分丢弃
+        if (currentTokenNum + tokenCount >= capacity) {
+            currentTokenNum = capacity;
+            tokenFraction = 0;
+        } else {
+            currentTokenNum += (int) tokenCount;
+        }
+    }
+
     public static void mockRequest(int n, Duration d, TokenBucketLimiter limiter) {
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+        CountDownLatch done = new CountDownLatch(n);
 
         for (int i = 0; i < n; i++) {
             int requestId = i + 1;
-            executor.schedule(() -> {
+            HashedWheelTimer.shared().schedule(() -> {
                 if (limiter.allow()) {
                     System.out.printf("第%d个请求通过\n", requestId);
                 } else {
                     System.out.printf("第%d个请求被限流\n", requestId);
                 }
+                done.countDown();
             }, i * d.toMillis(), TimeUnit.MILLISECONDS);
         }
 
-        executor.shutdown();
         try {
-            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                executor.shutdownNow();
+            if (!done.await(n * d.toMillis() + 5000, TimeUnit.MILLISECONDS)) {
+                System.out.println("等待请求执行超时");
             }
         } catch (InterruptedException e) {
-            executor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -84,6 +309,26 @@ public class TokenBucketLimiter {
         TokenBucketLimiter limiter = new TokenBucketLimiter(4, 5);
         // 发送10个请求，每50ms发送一个
         mockRequest(10, Duration.ofMillis(50), limiter);
+        System.out.println("=================按代价获取令牌=================");
+        // 每秒生成100个令牌，桶容量为500个；使用手动时钟，5秒后令牌桶装满
+        ManualTimeSource clock = new ManualTimeSource();
+        TokenBucketLimiter weighted = new TokenBucketLimiter(100, 500, clock);
+        clock.advance(Duration.ofSeconds(5));
+        System.out.printf("批量导出消耗500个令牌，还差%d个\n", weighted.tryAcquireOrShortfall(500));
+        System.out.printf("ping消耗1个令牌，还差%d个\n", weighted.tryAcquireOrShortfall(1));
+        clock.advance(Duration.ofMillis(10));
+        System.out.printf("10ms后ping消耗1个令牌，还差%d个\n", weighted.tryAcquireOrShortfall(1));
+        System.out.println("=================异步获取令牌=================");
+        // 每秒生成4个令牌，桶容量为1；一次提交5个异步请求，依次每250ms完成一个，不阻塞提交线程
+        TokenBucketLimiter async = new TokenBucketLimiter(4, 1);
+        long begin = System.nanoTime();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[5];
+        for (int i = 0; i < futures.length; i++) {
+            int requestId = i + 1;
+            futures[i] = async.acquireAsync(1).thenRun(() -> System.out.printf("%4d ms 第%d个请求获取到令牌\n",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), requestId));
+        }
+        CompletableFuture.allOf(futures).join();
         System.out.println("------------------------------------------");
     }
 }
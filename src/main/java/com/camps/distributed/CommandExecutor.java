@@ -0,0 +1,308 @@
+package com.camps.distributed;
+
+import com.camps.KeyedRateLimiter;
+import com.camps.RateLimiter;
+import com.camps.TimeSource;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 限流服务命令的执行逻辑
+ * <p>
+ * {@link LimiterServer} 的事件循环和进程内的 {@link LocalLimiterCommands} 共用这些实现，两者的结果一致。
+ * 调用方保证同一时刻只有一个线程执行命令（服务端只有一个事件循环线程，LocalLimiterCommands 加锁），
+ * 每条命令的读-改-写因此是原子的，相当于在 Redis 中用 Lua 脚本执行限流逻辑，没有先读后写之间的竞争，也只需一次往返：
+ * <ul>
+ *     <li>令牌桶、滑动窗口命令的参数随命令传入，状态按 key 保存在按访问顺序排列的 LinkedHashMap 中，每个 key 只有几个字段；
+ *     同一个 key 的参数变化时按新参数继续计算；令牌按纳秒时间差以定点数累加，与 {@link com.camps.TokenBucketLimiter} 相同，
+ *     不足一个令牌的部分不会丢失；</li>
+ *     <li>令牌桶补满、滑动窗口两个窗口都已过期的状态与新建的状态完全相同，每秒最多清理一次，清理不改变任何结果；
+ *     清理从最久未访问的 key 开始，遇到第一个不能清理的 key 就停止，不会在事件循环中遍历所有 key；</li>
+ *     <li>每种命令的 key 数超过 maxStates 时移除最久未访问的 key，与 {@link KeyedRateLimiter} 一样，
+ *     被移除的 key 再次访问时状态从头开始；</li>
+ *     <li>多 key 命令依次获取每个 key 的许可，某个 key 限流时按相反顺序归还已经获取的许可，全部成功才放行。</li>
+ * </ul>
+ * 非法参数抛出 {@link IllegalArgumentException}，服务端返回错误状态。
+ */
+final class CommandExecutor {
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1); // 清理过期状态的最小间隔
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final int DEFAULT_MAX_STATES = 1_000_000; // 每种命令默认最多保存的 key 数
+
+    private final KeyedRateLimiter<String> limiters; // 服务端托管的限流器，ACQUIRE 等命令使用
+    private final TimeSource timeSource;
+    private final Map<String, BucketState> buckets; // 令牌桶命令的状态，按访问顺序排列
+    private final Map<String, WindowState> windows; // 滑动窗口命令的状态，按访问顺序排列
+    private long lastSweep; // 上次清理时间
+
+    CommandExecutor(KeyedRateLimiter<String> limiters, TimeSource timeSource) {
+        this(limiters, timeSource, DEFAULT_MAX_STATES);
+    }
+
+    /**
+     * @param maxStates 令牌桶、滑动窗口命令各自最多保存的 key 数
+     */
+    CommandExecutor(KeyedRateLimiter<String> limiters, TimeSource timeSource, int maxStates) {
+        if (maxStates <= 0) {
+            throw new IllegalArgumentException("maxStates must be positive: " + maxStates);
+        }
+        this.limiters = limiters;
+        this.timeSource = timeSource;
+        this.buckets = new StateMap<>(maxStates);
+        this.windows = new StateMap<>(maxStates);
+        this.lastSweep = timeSource.nanoTime();
+    }
+
+    int acquire(String key, int permits) {
+        return limiters.tryAcquire(key, permits) ? 1 : 0;
+    }
+
+    int available(String key) {
+        return limiters.limiterFor(key).availablePermits();
+    }
+
+    void refund(String key, int permits) {
+        limiters.limiterFor(key).refund(permits);
+    }
+
+    boolean supportsRefund(String key) {
+        return limiters.limiterFor(key).supportsRefund();
+    }
+
+    /**
+     * 租借前读取的周期编号，归还租借的许可时带上
+     */
+    long epoch(String key) {
+        return limiters.limiterFor(key).epoch();
+    }
+
+    /**
+     * 归还租借的许可，窗口已经滚动时不计入新窗口
+     */
+    void refund(String key, int permits, long epoch) {
+        limiters.limiterFor(key).refund(permits, epoch);
+    }
+
+    /**
+     * 租借的许可过期后要归还，托管的限流器不支持归还时拒绝租借
+     */
+    int lease(String key, int permits) {
+        RateLimiter limiter = limiters.limiterFor(key);
+        checkRefundable(key, limiter);
+        return limiter.allowBatch(permits);
+    }
+
+    /**
+     * 令牌桶：按经过的时间补充令牌，不超过容量；新的 key 令牌桶是满的
+     */
+    boolean tokenBucketAcquire(String key, int permits, int rate, int capacity) {
+        checkTokenBucket(permits, rate, capacity);
+        long now = timeSource.nanoTime();
+        maybeSweep(now);
+        BucketState bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new BucketState(capacity, now);
+            buckets.put(key, bucket);
+        }
+        bucket.refill(now, rate, capacity);
+        if (bucket.tokens < permits) {
+            return false;
+        }
+        bucket.tokens -= permits;
+        return true;
+    }
+
+    /**
+     * 滑动窗口计数器，估算方式与 {@link com.camps.SlidingLimiter.Mode#COUNTER} 相同
+     */
+    boolean slidingWindowAcquire(String key, int permits, int windowMillis, int limit) {
+        checkSlidingWindow(permits, windowMillis, limit);
+        long now = timeSource.nanoTime();
+        maybeSweep(now);
+        WindowState window = windows.get(key);
+        if (window == null) {
+            window = new WindowState();
+            windows.put(key, window);
+        }
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        if (window.estimate(now, windowNanos) > limit - permits) {
+            return false;
+        }
+        window.currentCount += permits;
+        return true;
+    }
+
+    /**
+     * 同时获取多个 key 的许可，全部成功才放行
+     */
+    boolean acquireAll(String[] keys, int permits) {
+        checkKeyCount(keys.length);
+        // 先检查所有 key 都支持归还，不会在获取了一部分许可之后才发现无法归还
+        for (String key : keys) {
+            checkRefundable(key, limiters.limiterFor(key));
+        }
+        // 归还时带上获取前读取的周期编号，窗口已经滚动的 key 不会把许可计入新窗口；key 数可达上万，不使用递归
+        long[] epochs = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            RateLimiter limiter = limiters.limiterFor(keys[i]);
+            epochs[i] = limiter.epoch();
+            if (!limiter.tryAcquire(permits)) {
+                for (int j = i - 1; j >= 0; j--) {
+                    limiters.limiterFor(keys[j]).refund(permits, epochs[j]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 从最久未访问的 key 开始移除与新建状态相同的令牌桶和滑动窗口，遇到不能移除的 key 停止
+    private void maybeSweep(long now) {
+        if (now - lastSweep < SWEEP_INTERVAL) {
+            return;
+        }
+        lastSweep = now;
+        Iterator<BucketState> bucketIterator = buckets.values().iterator();
+        while (bucketIterator.hasNext() && bucketIterator.next().isFull(now)) {
+            bucketIterator.remove();
+        }
+        Iterator<WindowState> windowIterator = windows.values().iterator();
+        while (windowIterator.hasNext() && windowIterator.next().isExpired(now)) {
+            windowIterator.remove();
+        }
+    }
+
+    private static void checkRefundable(String key, RateLimiter limiter) {
+        if (!limiter.supportsRefund()) {
+            throw new IllegalArgumentException("limiter of " + key + " does not support refund: "
+                    + limiter.getClass().getSimpleName());
+        }
+    }
+
+    static void checkPermits(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+    }
+
+    static void checkTokenBucket(int permits, int rate, int capacity) {
+        checkPermits(permits);
+        if (rate <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("rate and capacity must be positive: " + rate + ", " + capacity);
+        }
+    }
+
+    static void checkSlidingWindow(int permits, int windowMillis, int limit) {
+        checkPermits(permits);
+        if (windowMillis <= 0 || limit <= 0) {
+            throw new IllegalArgumentException("window and limit must be positive: " + windowMillis + "ms, " + limit);
+        }
+    }
+
+    static int toWindowMillis(Duration window) {
+        long millis = window.toMillis();
+        if (millis <= 0 || millis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("window must be between 1ms and " + Integer.MAX_VALUE + "ms: " + window);
+        }
+        return (int) millis;
+    }
+
+    static void checkKeyCount(int count) {
+        if (count <= 0 || count > Protocol.MAX_KEYS) {
+            throw new IllegalArgumentException("key count must be between 1 and " + Protocol.MAX_KEYS + ": " + count);
+        }
+    }
+
+    // 按访问顺序排列，超过上限时移除最久未访问的 key
+    private static final class StateMap<V> extends LinkedHashMap<String, V> {
+        private final int maxStates;
+
+        StateMap(int maxStates) {
+            super(16, 0.75f, true);
+            this.maxStates = maxStates;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > maxStates;
+        }
+    }
+
+    // 一个 key 的令牌桶，不足一个令牌的部分以 令牌 × 10^9 为单位保存
+    private static final class BucketState {
+        int tokens; // 当前令牌数
+        long tokenFraction; // 不足一个令牌的部分，单位为 1/10^9 个令牌
+        long lastRefill; // 上次补充令牌的时间
+        int rate; // 最近一次命令的速率，清理时判断是否已补满
+        int capacity; // 最近一次命令的容量
+
+        BucketState(int capacity, long now) {
+            this.tokens = capacity;
+            this.lastRefill = now;
+        }
+
+        void refill(long now, int rate, int capacity) {
+            long elapsed = now - lastRefill;
+            this.lastRefill = now;
+            this.rate = rate;
+            this.capacity = capacity;
+            if (elapsed >= nanosToFill()) {
+                tokens = capacity;
+                tokenFraction = 0;
+                return;
+            }
+            // 补满之前 elapsed × rate 小于 capacity × 10^9，不会溢出
+            long scaledTokens = elapsed * rate + tokenFraction;
+            tokens += (int) (scaledTokens / NANOS_PER_SECOND);
+            tokenFraction = scaledTokens % NANOS_PER_SECOND;
+        }
+
+        boolean isFull(long now) {
+            return now - lastRefill >= nanosToFill();
+        }
+
+        // 按当前速率补满还需要的纳秒数，已生成的不足一个令牌的部分计算在内；容量变小后令牌数可能超过容量
+        private long nanosToFill() {
+            if (tokens >= capacity) {
+                return 0;
+            }
+            long scaled = (long) (capacity - tokens) * NANOS_PER_SECOND - tokenFraction;
+            return (scaled + rate - 1) / rate;
+        }
+    }
+
+    // 一个 key 的滑动窗口计数器，窗口从时钟的 0 点开始对齐
+    private static final class WindowState {
+        long windowNanos; // 最近一次命令的窗口大小
+        long windowIndex; // 当前固定窗口的序号
+        int previousCount; // 上一个固定窗口的请求数
+        int currentCount; // 当前固定窗口的请求数
+
+        double estimate(long now, long windowNanos) {
+            // 窗口大小变化时从头计数
+            if (windowNanos != this.windowNanos) {
+                this.windowNanos = windowNanos;
+                this.windowIndex = Math.floorDiv(now, windowNanos);
+                this.previousCount = 0;
+                this.currentCount = 0;
+            }
+            long index = Math.floorDiv(now, windowNanos);
+            if (index != windowIndex) {
+                previousCount = index == windowIndex + 1 ? currentCount : 0;
+                currentCount = 0;
+                windowIndex = index;
+            }
+            double overlap = (double) (windowNanos - (now - index * windowNanos)) / windowNanos;
+            return previousCount * overlap + currentCount;
+        }
+
+        boolean isExpired(long now) {
+            return Math.floorDiv(now, windowNanos) >= windowIndex + 2;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.camps.distributed;
+
+import com.camps.HashedWheelTimer;
+import com.camps.KeyedRateLimiter;
+import com.camps.RateLimiter;
+import com.camps.TokenBucketLimiter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * 集中式限流服务不可用时降级为本地限流
+ * <p>
+ * README 中集中式限流的两个问题是单点故障和网络延迟。本类正常情况下由服务端的令牌桶命令
+ * （{@link LimiterCommands#tokenBucketAcquireAsync}）判断，服务端变慢或不可用时改用本地的
+ * {@link TokenBucketLimiter}，速率和容量为全局的 1/N（N 为节点数），服务端恢复后自动切回。
+ * <ul>
+ *     <li>熔断器为关闭（{@link State#CLOSED}）时使用服务端，打开（{@link State#OPEN}）时只使用本地令牌桶；</li>
+ *     <li>连续 {@value #FAILURE_THRESHOLD} 次请求失败或耗时超过延迟预算时打开熔断器；</li>
+ *     <li>请求本身不设超时：共享时间轮每隔半个延迟预算检查最早一个未完成的请求，
+ *     它等待超过延迟预算时打开熔断器，所有未完成的请求立即改由本地令牌桶判断并返回，最多等待约 1.5 个延迟预算；</li>
+ *     <li>熔断器打开后，后台每隔 probeInterval 发送一次健康检查（连接已断开时先重新连接），
+ *     连续 {@value #RECOVERY_THRESHOLD} 次在延迟预算内返回后关闭熔断器。</li>
+ * </ul>
+ * 请求路径上只读取一次熔断器状态，切换完全由后台的检查驱动，不会因为等待超时增加请求的延迟。
+ * 本地令牌桶在构造时创建，正常期间也在积累令牌，切换到本地时最多立即放行 capacity / N 个请求。
+ * 每个实例使用一条独立的连接。
+ */
+public class FallbackRateLimiter implements RateLimiter, AutoCloseable {
+    private static final int FAILURE_THRESHOLD = 3; // 连续失败这么多次后打开熔断器
+    private static final int RECOVERY_THRESHOLD = 3; // 连续这么多次健康检查成功后关闭熔断器
+    private static final Duration DEFAULT_PROBE_INTERVAL = Duration.ofMillis(100);
+
+    /**
+     * 熔断器状态
+     */
+    public enum State {
+        /**
+         * 关闭：使用服务端判断
+         */
+        CLOSED,
+        /**
+         * 打开：使用本地令牌桶判断
+         */
+        OPEN
+    }
+
+    private final InetSocketAddress server;
+    private final String key;
+    private final int rate; // 全局每秒生成的令牌数
+    private final int capacity; // 全局令牌桶容量
+    private final TokenBucketLimiter local; // 本地令牌桶，速率和容量为全局的 1/N
+    private final long latencyBudgetNanos; // 延迟预算
+    private final long probeIntervalNanos; // 熔断器打开后健康检查的间隔
+    private final ConcurrentLinkedQueue<Pending> inflight = new ConcurrentLinkedQueue<>(); // 按提交顺序排列的服务端请求
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(); // 连续失败的请求数
+    private final AtomicBoolean probing = new AtomicBoolean(); // 是否有健康检查或重连正在进行
+    private volatile LimiterClient client;
+    private volatile State state = State.CLOSED;
+    private volatile boolean running = true;
+    private volatile HashedWheelTimer.Timeout monitor; // 下一次检查
+    private int consecutiveProbes; // 连续成功的健康检查次数，只由健康检查的回调读写
+    private long nextProbe; // 下一次健康检查的时间，只由时间轮线程读写
+
+    /**
+     * 健康检查间隔为 100ms
+     */
+    public FallbackRateLimiter(InetSocketAddress server, String key, int rate, int capacity, int nodes,
+                               Duration latencyBudget) throws IOException {
+        this(server, key, rate, capacity, nodes, latencyBudget, DEFAULT_PROBE_INTERVAL);
+    }
+
+    /**
+     * @param server        集中式限流服务的地址
+     * @param key           服务端令牌桶的 key
+     * @param rate          全局每秒生成的令牌数
+     * @param capacity      全局令牌桶容量
+     * @param nodes         节点数 N，本地令牌桶的速率和容量为全局的 1/N
+     * @param latencyBudget 服务端请求的延迟预算，超过时切换到本地
+     * @param probeInterval 熔断器打开后健康检查的间隔
+     * @throws IOException 第一次连接服务端失败
+     */
+    public FallbackRateLimiter(InetSocketAddress server, String key, int rate, int capacity, int nodes,
+                               Duration latencyBudget, Duration probeInterval) throws IOException {
+        CommandExecutor.checkTokenBucket(1, rate, capacity);
+        if (nodes <= 0) {
+            throw new IllegalArgumentException("nodes must be positive: " + nodes);
+        }
+        if (latencyBudget.isNegative() || latencyBudget.isZero()) {
+            throw new IllegalArgumentException("latencyBudget must be positive: " + latencyBudget);
+        }
+        if (probeInterval.isNegative() || probeInterval.isZero()) {
+            throw new IllegalArgumentException("probeInterval must be positive: " + probeInterval);
+        }
+        this.server = server;
+        this.key = key;
+        this.rate = rate;
+        this.capacity = capacity;
+        this.local = new TokenBucketLimiter(Math.max(1, rate / nodes), Math.max(1, capacity / nodes));
+        this.latencyBudgetNanos = latencyBudget.toNanos();
+        this.probeIntervalNanos = probeInterval.toNanos();
+        this.client = new LimiterClient(server);
+        scheduleMonitor();
+    }
+
+    /**
+     * 熔断器关闭时等待服务端的结果，打开时由本地令牌桶判断
+     */
+    @Override
+    public boolean tryAcquire(int permits) {
+        CommandExecutor.checkPermits(permits);
+        if (state == State.OPEN) {
+            return local.tryAcquire(permits);
+        }
+        Pending pending = new Pending(permits, System.nanoTime());
+        inflight.offer(pending);
+        client.tokenBucketAcquireAsync(key, permits, rate, capacity).whenComplete((admitted, failure) -> {
+            if (failure == null && System.nanoTime() - pending.startTime <= latencyBudgetNanos) {
+                if (consecutiveFailures.get() != 0) {
+                    consecutiveFailures.set(0);
+                }
+            } else if (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+                open();
+            }
+            if (failure == null) {
+                pending.complete(admitted);
+            } else {
+                pending.fallback();
+            }
+        });
+        return pending.join();
+    }
+
+    /**
+     * 本地令牌桶的可用许可数；服务端令牌桶的状态不能单独查询
+     */
+    @Override
+    public int availablePermits() {
+        return local.availablePermits();
+    }
+
+    public State state() {
+        return state;
+    }
+
+    // 打开熔断器，未完成的请求改由本地令牌桶判断
+    private void open() {
+        state = State.OPEN;
+        consecutiveFailures.set(0);
+        abortInflight();
+    }
+
+    private void abortInflight() {
+        Pending pending;
+        while ((pending = inflight.poll()) != null) {
+            pending.fallback();
+        }
+    }
+
+    private void scheduleMonitor() {
+        if (running) {
+            monitor = HashedWheelTimer.shared().schedule(this::check, latencyBudgetNanos / 2, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // 在时间轮线程中执行，不能阻塞
+    private void check() {
+        long now = System.nanoTime();
+        if (state == State.CLOSED) {
+            // 移除已经完成的请求，最早一个未完成的请求超过延迟预算时打开熔断器
+            Pending oldest;
+            while ((oldest = inflight.peek()) != null && oldest.isDone()) {
+                inflight.poll();
+            }
+            if (oldest != null && now - oldest.startTime > latencyBudgetNanos) {
+                open();
+            }
+        } else {
+            // 熔断器打开的同时提交到服务端的请求
+            abortInflight();
+            if (now - nextProbe >= 0 && probing.compareAndSet(false, true)) {
+                nextProbe = now + probeIntervalNanos;
+                probe();
+            }
+        }
+        scheduleMonitor();
+    }
+
+    private void probe() {
+        LimiterClient current = client;
+        if (current.isFailed()) {
+            reconnect();
+            return;
+        }
+        long start = System.nanoTime();
+        current.ping().whenComplete((value, failure) -> {
+            if (failure == null && System.nanoTime() - start <= latencyBudgetNanos) {
+                if (++consecutiveProbes >= RECOVERY_THRESHOLD) {
+                    consecutiveProbes = 0;
+                    state = State.CLOSED;
+                }
+            } else {
+                consecutiveProbes = 0;
+            }
+            probing.set(false);
+        });
+    }
+
+    // 建立连接会阻塞，在单独的线程中进行
+    private void reconnect() {
+        Thread connector = new Thread(() -> {
+            try {
+                LimiterClient reconnected = new LimiterClient(server);
+                if (running) {
+                    client = reconnected;
+                } else {
+                    reconnected.close();
+                }
+            } catch (IOException e) {
+                // 下一次健康检查时重试
+            } finally {
+                probing.set(false);
+            }
+        }, "fallback-limiter-connect");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    /**
+     * 停止健康检查，关闭连接
+     */
+    @Override
+    public void close() {
+        running = false;
+        HashedWheelTimer.Timeout scheduled = monitor;
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+        client.close();
+    }
+
+    // 一个等待服务端结果的请求，先完成的一方（服务端结果或本地判断）决定结果
+    private final class Pending extends CompletableFuture<Boolean> {
+        final int permits;
+        final long startTime; // 提交时间
+
+        Pending(int permits, long startTime) {
+            this.permits = permits;
+            this.startTime = startTime;
+        }
+
+        void fallback() {
+            if (!isDone()) {
+                complete(local.tryAcquire(permits));
+            }
+        }
+    }
+
+    /**
+     * 服务端正常、关闭、重新启动三个阶段中的判断方式和放行数
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("=================集中式限流降级=================");
+        KeyedRateLimiter<String> hosted = new KeyedRateLimiter<>(key -> new TokenBucketLimiter(1, 1),
+                Duration.ofMinutes(10), 1000);
+        LimiterServer server = new LimiterServer(hosted);
+        InetSocketAddress address = server.address();
+        // 全局每秒 100 个，容量 100，共 4 个节点；服务端 20ms 内没有返回即切换到本地
+        try (FallbackRateLimiter limiter = new FallbackRateLimiter(address, "api", 100, 100, 4, Duration.ofMillis(20))) {
+            // 本地令牌桶初始没有令牌，1 秒后装满
+            Thread.sleep(1000);
+            int admitted = admit(limiter, 100);
+            System.out.printf("服务端正常: %s，100 个请求通过 %d 个\n", limiter.state(), admitted);
+            server.close();
+            Thread.sleep(50);
+            admitted = admit(limiter, 100);
+            System.out.printf("服务端关闭后: %s，100 个请求通过 %d 个（本地令牌桶容量 25）\n", limiter.state(), admitted);
+            server = new LimiterServer(address, hosted);
+            Thread.sleep(1000);
+            admitted = admit(limiter, 100);
+            System.out.printf("服务端重启 1 秒后: %s，100 个请求通过 %d 个\n", limiter.state(), admitted);
+        } finally {
+            server.close();
+        }
+        System.out.println("------------------------------------------");
+    }
+
+    private static int admit(RateLimiter limiter, int requests) {
+        int admitted = 0;
+        for (int i = 0; i < requests; i++) {
+            if (limiter.tryAcquire()) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+}
@@ -0,0 +1,689 @@
+package com.camps.distributed;
+
+import com.camps.RateLimiter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * 基于 gossip 的近似全局限流
+ * <p>
+ * 对应 README 中负载均衡下的分布式限流方案，但不依赖集中式存储：每个节点只统计自己放行的请求数，
+ * 定期通过 UDP 把计数的变化发给其他节点。全局限额在节点之间分成额度，请求只在本节点的额度内 CAS 扣减，没有网络 I/O；
+ * 额度只由持有它的节点转出，各节点的额度之和不超过全局限额，成员视图一致时全局放行数严格不超过限额。
+ * <ul>
+ *     <li>窗口按系统时间对齐（{@link System#currentTimeMillis()} / 窗口大小），各节点的同一个窗口序号对应同一段时间；</li>
+ *     <li>每个窗口开始时全局限额按存活节点数平分，余数不分配，每个窗口最多少放行 存活节点数 - 1 个；
+ *     加入集群未满一个存活期的节点其他节点还不一定知道它，所在的窗口不分额度；</li>
+ *     <li>每个窗口的计数是一个 G-Counter：每个节点的计数只增不减，合并时按节点取最大值，消息重复、乱序、丢失都不影响结果，
+ *     用于估算全局已放行的请求数（{@link #globalCount()}）；</li>
+ *     <li>每个 gossip 周期只发送自上次发送以来变化的计数（自己的和从其他节点收到的），一个节点一条 16 字节，
+ *     同时带上本节点在这个窗口被限流的许可数；</li>
+ *     <li>其他节点被限流的许可数增加时，本节点把预计用不完的额度（扣除按上个周期的增量预留的两个周期的用量）
+ *     与这些节点平分，自己也算一份；转给每个节点的额度是只增不减的累计值，每个周期重发，消息重复、丢失都不会多算；</li>
+ *     <li>每个节点每个周期把自己的心跳计数加 1，连同已知的存活节点（ID、心跳计数、地址）发给其他节点。
+ *     只以同一个种子节点启动的节点也能通过转发互相发现，之后直接通信；心跳计数只由节点自己递增，
+ *     转发的旧心跳不会延长已离开节点的存活期；</li>
+ *     <li>一段时间（3 个周期）收不到某个节点的消息、也没有看到它的心跳计数增加时认为它已离开，
+ *     从下一个窗口开始全局限额在存活节点之间平分，它在当前窗口没有用完的额度不再使用；
+ *     新节点向任意一个已知节点发送消息即加入，没有单点。</li>
+ * </ul>
+ * 窗口开始时某个节点还没有发现另一个已经分到额度的节点（例如连续丢失一个存活期的消息），两者的额度之和可能超过全局限额。
+ * 窗口方式见 {@link Mode}。计数只增不减，不支持 {@link #refund(int)}，{@link #supportsRefund()} 为 false。
+ */
+public class GossipRateLimiter implements RateLimiter, AutoCloseable {
+    private static final int MAGIC = 0x474F5353; // 计数消息的消息头，过滤无关的数据包
+    private static final int MEMBERS_MAGIC = 0x4D454D42; // 成员消息的消息头
+    private static final int TRANSFER_MAGIC = 0x5452414E; // 转出额度消息的消息头
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 8 + 2; // 消息头 + 发送节点 + 窗口序号 + 被限流的许可数 + 条数
+    private static final int MEMBERS_HEADER_SIZE = 4 + 8 + 8 + 2; // 消息头 + 发送节点 + 心跳计数 + 条数
+    private static final int TRANSFER_SIZE = 4 + 8 + 8 + 8; // 消息头 + 发送节点 + 窗口序号 + 累计转给接收节点的额度
+    private static final int ENTRY_SIZE = 8 + 8; // 节点 + 计数
+    private static final int MAX_MEMBER_ENTRY_SIZE = 8 + 8 + 2 + 1 + 16; // 节点 + 心跳计数 + 端口 + 地址长度 + IPv6 地址
+    private static final int MAX_PACKET_SIZE = 1400; // 不超过常见的 MTU，避免 IP 分片
+    private static final int MAX_ENTRIES = (MAX_PACKET_SIZE - HEADER_SIZE) / ENTRY_SIZE;
+    private static final int LIVENESS_PERIODS = 3; // 超过这么多个周期收不到消息的节点认为已离开
+    private static final int FORGET_PERIODS = 100; // 已离开的节点保留这么多个周期后删除，期间转发的旧心跳不会让它复活
+    private static final long MASK = 0xFFFFFFFFL; // 窗口状态中本节点已放行数所在的低 32 位
+    private static final Duration DEFAULT_GOSSIP_INTERVAL = Duration.ofMillis(10);
+
+    /**
+     * 全局计数的窗口方式
+     */
+    public enum Mode {
+        /**
+         * 固定窗口，与 {@link com.camps.FixedLimiter} 相同
+         */
+        FIXED,
+        /**
+         * 滑动窗口计数器，与 {@link com.camps.SlidingLimiter.Mode#COUNTER} 相同：每个节点的
+         * 上一个窗口的放行数 × 重叠比例 + 当前窗口的放行数 不超过本节点的额度，全局的估算值也就不超过全局限额
+         */
+        SLIDING
+    }
+
+    private final long nodeId; // 本节点 ID，启动时随机生成
+    private final long windowMillis; // 窗口大小，单位为毫秒
+    private final int globalLimit; // 每个窗口全局最多放行的请求数
+    private final Mode mode;
+    private final long gossipIntervalNanos; // gossip 周期
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Set<SocketAddress> seeds; // 启动时已知的节点地址
+    private final Map<Long, Member> members = new HashMap<>(); // 其他节点，包括刚离开的，只由 gossip 线程读写
+    private final ReentrantLock windowLock = new ReentrantLock(); // 切换窗口
+    private final long startTime; // 启动时刻，未满一个存活期之前按种子节点数估算节点数，也不分额度
+    private final Thread gossiper; // gossip 线程
+    private volatile Window current; // 当前窗口
+    private volatile int liveNodes; // 存活节点数，包括本节点
+    private volatile boolean running = true;
+    private long heartbeat; // 本节点的心跳计数，每个周期加 1，只由 gossip 线程读写
+
+    /**
+     * 每 10ms gossip 一次，固定窗口
+     *
+     * @param bind  本节点绑定的 UDP 地址，端口为 0 时随机分配
+     * @param seeds 启动时已知的其他节点地址，可以为空（第一个节点）
+     */
+    public GossipRateLimiter(InetSocketAddress bind, Collection<InetSocketAddress> seeds, Duration windowSize,
+                             int globalLimit) throws IOException {
+        this(bind, seeds, windowSize, globalLimit, Mode.FIXED, DEFAULT_GOSSIP_INTERVAL);
+    }
+
+    public GossipRateLimiter(InetSocketAddress bind, Collection<InetSocketAddress> seeds, Duration windowSize,
+                             int globalLimit, Mode mode, Duration gossipInterval) throws IOException {
+        if (windowSize.toMillis() <= 0) {
+            throw new IllegalArgumentException("windowSize must be at least 1ms: " + windowSize);
+        }
+        if (globalLimit <= 0) {
+            throw new IllegalArgumentException("globalLimit must be positive: " + globalLimit);
+        }
+        if (gossipInterval.isNegative() || gossipInterval.isZero()) {
+            throw new IllegalArgumentException("gossipInterval must be positive: " + gossipInterval);
+        }
+        this.nodeId = ThreadLocalRandom.current().nextLong();
+        this.windowMillis = windowSize.toMillis();
+        this.globalLimit = globalLimit;
+        this.mode = mode;
+        this.gossipIntervalNanos = gossipInterval.toNanos();
+        this.seeds = new LinkedHashSet<>(seeds);
+        this.liveNodes = 1 + this.seeds.size();
+        this.selector = Selector.open();
+        this.channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(bind);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            selector.close();
+            throw e;
+        }
+        this.startTime = System.nanoTime();
+        this.current = new Window(System.currentTimeMillis() / windowMillis, null, initialAllowance());
+        this.gossiper = new Thread(this::run, "gossip-limiter");
+        this.gossiper.setDaemon(true);
+        this.gossiper.start();
+    }
+
+    /**
+     * 实际绑定的地址，绑定随机端口时用于获取端口号
+     */
+    public InetSocketAddress address() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 在本节点的额度内扣减，不访问网络
+     */
+    @Override
+    public boolean tryAcquire(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+        long nowMillis = System.currentTimeMillis();
+        Window window = currentWindow(nowMillis / windowMillis);
+        long carried = carried(window, nowMillis);
+        for (;;) {
+            long state = window.state.get();
+            if (used(state) + carried > allowance(state) - permits) {
+                window.rejected.addAndGet(permits);
+                return false;
+            }
+            if (window.state.compareAndSet(state, state + permits)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public int allowBatch(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must not be negative: " + n);
+        }
+        long nowMillis = System.currentTimeMillis();
+        Window window = currentWindow(nowMillis / windowMillis);
+        long carried = carried(window, nowMillis);
+        for (;;) {
+            long state = window.state.get();
+            int admitted = (int) Math.min(n, Math.max(0, allowance(state) - used(state) - carried));
+            if (admitted == 0 || window.state.compareAndSet(state, state + admitted)) {
+                if (admitted < n) {
+                    window.rejected.addAndGet(n - admitted);
+                }
+                return admitted;
+            }
+        }
+    }
+
+    /**
+     * 本节点在当前窗口剩余的额度
+     */
+    @Override
+    public int availablePermits() {
+        long nowMillis = System.currentTimeMillis();
+        Window window = currentWindow(nowMillis / windowMillis);
+        long state = window.state.get();
+        return (int) Math.max(0, allowance(state) - used(state) - carried(window, nowMillis));
+    }
+
+    /**
+     * 当前窗口全局已放行请求数的估算值，最多落后一个 gossip 周期
+     */
+    public long globalCount() {
+        Window window = currentWindow(System.currentTimeMillis() / windowMillis);
+        return used(window.state.get()) + window.peerTotal;
+    }
+
+    /**
+     * 存活节点数，包括本节点
+     */
+    public int liveNodes() {
+        return liveNodes;
+    }
+
+    private Window currentWindow(long index) {
+        Window window = current;
+        return window.index >= index ? window : advance(index);
+    }
+
+    // 进入新的窗口，紧接着的上一个窗口保留用于滑动窗口的估算和接收迟到的消息
+    private Window advance(long index) {
+        windowLock.lock();
+        try {
+            Window window = current;
+            if (window.index >= index) {
+                return window;
+            }
+            Window next = new Window(index, window.index == index - 1 ? window : null, initialAllowance());
+            window.previous = null;
+            current = next;
+            return next;
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    // 本节点在新窗口的初始额度：全局限额按存活节点数平分。
+    // 刚加入时其他节点可能还没有把本节点算进存活节点数、已经分完了全局限额，这时只接收其他节点转来的额度
+    private long initialAllowance() {
+        if (!seeds.isEmpty() && System.nanoTime() - startTime <= LIVENESS_PERIODS * gossipIntervalNanos) {
+            return 0;
+        }
+        return globalLimit / liveNodes;
+    }
+
+    // 滑动窗口方式下，上一个窗口本节点的放行数按与滑动窗口的重叠比例占用当前窗口的额度
+    private long carried(Window window, long nowMillis) {
+        Window previous = window.previous;
+        if (mode != Mode.SLIDING || previous == null) {
+            return 0;
+        }
+        double overlap = (double) (windowMillis - (nowMillis - window.index * windowMillis)) / windowMillis;
+        return (long) Math.ceil(used(previous.state.get()) * Math.max(0, Math.min(1, overlap)));
+    }
+
+    private static long allowance(long state) {
+        return state >>> 32;
+    }
+
+    private static long used(long state) {
+        return state & MASK;
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        long nextGossip = System.nanoTime();
+        try {
+            while (running) {
+                long waitMillis = TimeUnit.NANOSECONDS.toMillis(nextGossip - System.nanoTime());
+                if (waitMillis > 0) {
+                    selector.select(waitMillis);
+                } else {
+                    selector.selectNow();
+                }
+                selector.selectedKeys().clear();
+                receive(buffer);
+                long now = System.nanoTime();
+                if (now - nextGossip >= 0) {
+                    updateMembership(now);
+                    gossip(buffer);
+                    nextGossip = now + gossipIntervalNanos;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, e);
+            }
+        } finally {
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException ignored) {
+                // 已经在关闭
+            }
+        }
+    }
+
+    // 读取所有已到达的消息，计数合并到对应窗口的 G-Counter，转来的额度加到对应窗口
+    private void receive(ByteBuffer buffer) throws IOException {
+        SocketAddress sender;
+        while ((sender = receiveOne(buffer)) != null) {
+            buffer.flip();
+            if (buffer.remaining() < MEMBERS_HEADER_SIZE) {
+                continue;
+            }
+            int magic = buffer.getInt();
+            if (magic != MAGIC && magic != MEMBERS_MAGIC && magic != TRANSFER_MAGIC) {
+                continue;
+            }
+            long from = buffer.getLong();
+            if (from == nodeId) {
+                continue;
+            }
+            long now = System.nanoTime();
+            Member member = members.get(from);
+            if (member == null) {
+                member = new Member();
+                members.put(from, member);
+            }
+            member.address = sender;
+            member.lastSeen = now;
+            if (magic == MEMBERS_MAGIC) {
+                receiveMembers(buffer, member, now);
+                continue;
+            }
+            if (buffer.remaining() < (magic == MAGIC ? HEADER_SIZE : TRANSFER_SIZE) - 12) {
+                continue;
+            }
+            Window window = windowFor(buffer.getLong());
+            if (magic == TRANSFER_MAGIC) {
+                long transferred = buffer.getLong();
+                if (window != null) {
+                    window.receive(from, transferred);
+                }
+                continue;
+            }
+            long rejected = buffer.getLong();
+            int count = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() < count * ENTRY_SIZE) {
+                continue;
+            }
+            if (window != null && rejected > 0) {
+                window.peerRejected.merge(from, rejected, Math::max);
+            }
+            for (int i = 0; i < count; i++) {
+                long node = buffer.getLong();
+                long value = buffer.getLong();
+                if (window != null && node != nodeId) {
+                    window.merge(node, value);
+                }
+            }
+        }
+    }
+
+    // 只接受相邻的窗口：对方时钟稍快时提前进入下一个窗口，稍慢时合并到上一个窗口
+    private Window windowFor(long index) {
+        Window window = currentWindow(System.currentTimeMillis() / windowMillis);
+        if (index == window.index + 1) {
+            return advance(index);
+        } else if (index == window.index - 1) {
+            return window.previous;
+        }
+        return index == window.index ? window : null;
+    }
+
+    // 合并发送节点转发的成员：心跳计数比已知的大说明该节点仍然存活
+    private void receiveMembers(ByteBuffer buffer, Member sender, long now) throws IOException {
+        sender.heartbeat = Math.max(sender.heartbeat, buffer.getLong());
+        int count = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < MAX_MEMBER_ENTRY_SIZE - 16) {
+                return;
+            }
+            long node = buffer.getLong();
+            long beat = buffer.getLong();
+            int port = buffer.getShort() & 0xFFFF;
+            int length = buffer.get();
+            if ((length != 4 && length != 16) || buffer.remaining() < length) {
+                return;
+            }
+            byte[] address = new byte[length];
+            buffer.get(address);
+            if (node == nodeId) {
+                continue;
+            }
+            Member member = members.get(node);
+            if (member == null) {
+                member = new Member();
+                member.address = new InetSocketAddress(InetAddress.getByAddress(address), port);
+                members.put(node, member);
+            } else if (beat <= member.heartbeat) {
+                continue;
+            }
+            member.heartbeat = beat;
+            member.lastSeen = now;
+        }
+    }
+
+    private SocketAddress receiveOne(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        return channel.receive(buffer);
+    }
+
+    // 删除离开已久的节点，重新计算存活节点数
+    private void updateMembership(long now) {
+        long timeout = LIVENESS_PERIODS * gossipIntervalNanos;
+        int live = 1;
+        Iterator<Member> it = members.values().iterator();
+        while (it.hasNext()) {
+            long silent = now - it.next().lastSeen;
+            if (silent > FORGET_PERIODS * gossipIntervalNanos) {
+                it.remove();
+            } else if (silent <= timeout) {
+                live++;
+            }
+        }
+        // 刚启动时还没来得及收到种子节点的消息，按种子节点数估算，避免独占全部额度
+        liveNodes = now - startTime > timeout ? live : Math.max(live, 1 + seeds.size());
+    }
+
+    // 把存活的成员、上一个和当前窗口变化的计数发给种子节点和所有存活节点，把用不完的额度转给被限流的节点
+    private void gossip(ByteBuffer buffer) throws IOException {
+        long nowMillis = System.currentTimeMillis();
+        Window window = currentWindow(nowMillis / windowMillis);
+        long timeout = LIVENESS_PERIODS * gossipIntervalNanos;
+        long now = System.nanoTime();
+        List<Map.Entry<Long, Member>> live = new ArrayList<>();
+        Set<SocketAddress> targets = new LinkedHashSet<>(seeds);
+        for (Map.Entry<Long, Member> entry : members.entrySet()) {
+            if (now - entry.getValue().lastSeen <= timeout) {
+                live.add(entry);
+                targets.add(entry.getValue().address);
+            }
+        }
+        targets.remove(address());
+        sendMembers(buffer, live, targets);
+        Window previous = window.previous;
+        if (previous != null) {
+            send(buffer, previous, targets, false);
+        }
+        // 当前窗口没有变化时也发送本节点的计数，作为心跳
+        send(buffer, window, targets, true);
+        rebalance(window, nowMillis, now);
+        sendTransfers(buffer, window);
+    }
+
+    // 上个周期被限流的许可数增加了的存活节点与本节点平分本节点预计用不完的额度
+    private void rebalance(Window window, long nowMillis, long now) {
+        long timeout = LIVENESS_PERIODS * gossipIntervalNanos;
+        List<Long> starved = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : window.peerRejected.entrySet()) {
+            Long seen = window.seenRejected.put(entry.getKey(), entry.getValue());
+            Member member = members.get(entry.getKey());
+            if ((seen == null || entry.getValue() > seen) && member != null && now - member.lastSeen <= timeout) {
+                starved.add(entry.getKey());
+            }
+        }
+        long state = window.state.get();
+        long growth = used(state) - window.lastUsed;
+        window.lastUsed = used(state);
+        if (starved.isEmpty()) {
+            return;
+        }
+        // 额度要用到下一次转出之后，按上个周期的增量为本节点预留两个周期的用量
+        long carried = carried(window, nowMillis);
+        long spare = allowance(state) - used(state) - carried - 2 * growth;
+        long share = spare / (starved.size() + 1);
+        if (share <= 0) {
+            return;
+        }
+        for (Long node : starved) {
+            if (!window.release(share, carried)) {
+                break;
+            }
+            window.given.merge(node, share, Long::sum);
+        }
+    }
+
+    // 把累计转给每个节点的额度直接发给它，每个周期重发，丢失的消息由下一个周期补上
+    private void sendTransfers(ByteBuffer buffer, Window window) throws IOException {
+        for (Map.Entry<Long, Long> entry : window.given.entrySet()) {
+            Member member = members.get(entry.getKey());
+            if (member == null) {
+                continue;
+            }
+            buffer.clear();
+            buffer.putInt(TRANSFER_MAGIC).putLong(nodeId).putLong(window.index).putLong(entry.getValue());
+            buffer.flip();
+            channel.send(buffer, member.address);
+        }
+    }
+
+    // 发送本节点的心跳计数和存活的成员，一个包放不下时分多个包
+    private void sendMembers(ByteBuffer buffer, List<Map.Entry<Long, Member>> live, Set<SocketAddress> targets)
+            throws IOException {
+        heartbeat++;
+        int from = 0;
+        do {
+            buffer.clear();
+            buffer.putInt(MEMBERS_MAGIC).putLong(nodeId).putLong(heartbeat).putShort((short) 0);
+            int count = 0;
+            for (; from < live.size() && buffer.remaining() >= MAX_MEMBER_ENTRY_SIZE; from++) {
+                Member member = live.get(from).getValue();
+                InetSocketAddress address = (InetSocketAddress) member.address;
+                byte[] ip = address.getAddress().getAddress();
+                buffer.putLong(live.get(from).getKey()).putLong(member.heartbeat)
+                        .putShort((short) address.getPort()).put((byte) ip.length).put(ip);
+                count++;
+            }
+            buffer.putShort(MEMBERS_HEADER_SIZE - 2, (short) count);
+            for (SocketAddress target : targets) {
+                buffer.flip();
+                channel.send(buffer, target);
+            }
+        } while (from < live.size());
+    }
+
+    private void send(ByteBuffer buffer, Window window, Set<SocketAddress> targets, boolean heartbeat)
+            throws IOException {
+        List<long[]> entries = new ArrayList<>();
+        long local = used(window.state.get());
+        if (local != window.sentLocal || heartbeat) {
+            entries.add(new long[]{nodeId, local});
+            window.sentLocal = local;
+        }
+        for (Long node : window.dirty) {
+            entries.add(new long[]{node, window.peers.get(node)});
+        }
+        window.dirty.clear();
+        for (int from = 0; from < entries.size(); from += MAX_ENTRIES) {
+            int to = Math.min(entries.size(), from + MAX_ENTRIES);
+            buffer.clear();
+            buffer.putInt(MAGIC).putLong(nodeId).putLong(window.index).putLong(window.rejected.get())
+                    .putShort((short) (to - from));
+            for (int i = from; i < to; i++) {
+                buffer.putLong(entries.get(i)[0]).putLong(entries.get(i)[1]);
+            }
+            for (SocketAddress target : targets) {
+                buffer.flip();
+                // 发送缓冲区满时丢弃，下一个周期会再次发送最新的计数
+                channel.send(buffer, target);
+            }
+        }
+    }
+
+    /**
+     * 停止 gossip，其他节点在几个周期后认为本节点已离开
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    // 一个窗口的额度和 G-Counter
+    private static final class Window {
+        final long index; // 窗口序号
+        final AtomicLong state; // 高 32 位为本节点的额度，低 32 位为本节点放行的请求数，转出额度和放行在同一次 CAS 中判断
+        final AtomicLong rejected = new AtomicLong(); // 本节点被限流的许可数
+        final Map<Long, Long> peers = new HashMap<>(); // 其他节点放行的请求数，只由 gossip 线程读写
+        final Set<Long> dirty = new HashSet<>(); // 上次发送后变化的其他节点，只由 gossip 线程读写
+        final Map<Long, Long> peerRejected = new HashMap<>(); // 其他节点被限流的许可数，只由 gossip 线程读写
+        final Map<Long, Long> seenRejected = new HashMap<>(); // 上个周期看到的其他节点被限流的许可数，只由 gossip 线程读写
+        final Map<Long, Long> given = new HashMap<>(); // 累计转给其他节点的额度，只由 gossip 线程读写
+        final Map<Long, Long> received = new HashMap<>(); // 其他节点累计转来的额度，只由 gossip 线程读写
+        volatile Window previous; // 紧接着的上一个窗口
+        volatile long peerTotal; // 其他节点放行的请求数之和，只由 gossip 线程写
+        long sentLocal; // 上次发送的本节点计数，只由 gossip 线程读写
+        long lastUsed; // 上个周期本节点放行的请求数，只由 gossip 线程读写
+
+        Window(long index, Window previous, long allowance) {
+            this.index = index;
+            this.previous = previous;
+            this.state = new AtomicLong(allowance << 32);
+        }
+
+        // 剩余额度足够时转出，与请求线程的扣减在同一个 CAS 上竞争，转出的额度不会同时被本节点放行
+        boolean release(long permits, long carried) {
+            for (;;) {
+                long current = state.get();
+                if (allowance(current) - used(current) - carried < permits) {
+                    return false;
+                }
+                if (state.compareAndSet(current, current - (permits << 32))) {
+                    return true;
+                }
+            }
+        }
+
+        // 累计值比已知的大时，把增加的部分加到额度上
+        void receive(long node, long transferred) {
+            Long old = received.get(node);
+            long known = old == null ? 0 : old;
+            if (transferred > known) {
+                received.put(node, transferred);
+                state.addAndGet((transferred - known) << 32);
+            }
+        }
+
+        void merge(long node, long value) {
+            Long old = peers.get(node);
+            long known = old == null ? 0 : old;
+            if (value > known) {
+                peers.put(node, value);
+                dirty.add(node);
+                peerTotal += value - known;
+            }
+        }
+    }
+
+    // 其他节点的地址、心跳计数和最近一次确认存活的时间，只由 gossip 线程读写
+    private static final class Member {
+        SocketAddress address;
+        long heartbeat; // 已知的最大心跳计数
+        long lastSeen; // 最近一次直接收到它的消息或看到它的心跳计数增加的时间
+    }
+
+    /**
+     * 在 127.0.0.1 上启动 3 个节点，全局每秒最多放行 300 个请求
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("=================gossip 全局限流=================");
+        InetSocketAddress loopback = new InetSocketAddress("127.0.0.1", 0);
+        List<GossipRateLimiter> nodes = new ArrayList<>();
+        nodes.add(new GossipRateLimiter(loopback, Collections.emptyList(), Duration.ofSeconds(1), 300));
+        List<InetSocketAddress> seeds = Collections.singletonList(nodes.get(0).address());
+        nodes.add(new GossipRateLimiter(loopback, seeds, Duration.ofSeconds(1), 300));
+        nodes.add(new GossipRateLimiter(loopback, seeds, Duration.ofSeconds(1), 300));
+        try {
+            Thread.sleep(100);
+            System.out.printf("节点 1 看到 %d 个存活节点\n", nodes.get(0).liveNodes());
+            for (int round = 0; round < 2; round++) {
+                // 从下一个窗口开始，每个节点每毫秒请求一次，持续一个窗口
+                long window = System.currentTimeMillis() / 1000;
+                while (System.currentTimeMillis() / 1000 == window) {
+                    Thread.sleep(1);
+                }
+                int[] admitted = new int[nodes.size()];
+                window = System.currentTimeMillis() / 1000;
+                while (System.currentTimeMillis() / 1000 == window) {
+                    for (int i = 0; i < nodes.size(); i++) {
+                        if (nodes.get(i).tryAcquire()) {
+                            admitted[i]++;
+                        }
+                    }
+                    Thread.sleep(1);
+                }
+                int total = 0;
+                for (int n : admitted) {
+                    total += n;
+                }
+                System.out.printf("%d 个节点，各节点通过 %s，合计 %d 个请求\n",
+                        nodes.size(), Arrays.toString(admitted), total);
+                // 节点 3 离开，从下一个窗口开始全局限额在另外两个节点之间平分
+                if (round == 0) {
+                    nodes.remove(2).close();
+                    Thread.sleep(100);
+                    System.out.printf("节点 3 离开后节点 1 看到 %d 个存活节点\n", nodes.get(0).liveNodes());
+                }
+            }
+        } finally {
+            for (GossipRateLimiter node : nodes) {
+                node.close();
+            }
+        }
+        System.out.println("------------------------------------------");
+    }
+}
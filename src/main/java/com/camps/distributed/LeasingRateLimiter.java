@@ -0,0 +1,324 @@
+package com.camps.distributed;
+
+import com.camps.HashedWheelTimer;
+import com.camps.KeyedRateLimiter;
+import com.camps.RateLimiter;
+import com.camps.TokenBucketLimiter;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * 批量租借许可的集中式限流器
+ * <p>
+ * 每次请求都访问集中式限流服务要多一次网络往返，服务端也会成为瓶颈。本类一次向服务端租借一批许可保存在本地，
+ * 请求只在本地扣减，不访问网络：
+ * <ul>
+ *     <li>本地许可数与租约代数打包在一个 {@link AtomicLong} 中，扣减是一次 CAS，没有锁；</li>
+ *     <li>剩余许可低于上一批的一半时在后台预取下一批，同一时刻最多一个租借请求，本地许可用完时调用线程等待这个请求；
+ *     等待最多 leaseTimeout，服务端没有及时返回时按限流处理，租借请求继续在后台完成，租到的许可留给之后的请求；</li>
+ *     <li>每批的大小按观测到的本地消耗速率（指数加权移动平均）计算，约为半个有效期内的消耗量，
+ *     本地持有的许可数始终不超过 maxLease；</li>
+ *     <li>许可在本地的有效期为 leaseTtl，期间没有租到新的一批时，剩余的许可归还服务端，供其他节点使用。</li>
+ * </ul>
+ * 许可都是从服务端实际租到的，误差在于被某个节点持有但暂未使用的许可，每个节点最多 maxLease 个，
+ * 持有时间不超过 leaseTtl；服务端是窗口类限流器时，这些许可可能在下一个窗口中使用。
+ * 归还时带上本地持有的许可中最早一批租借时的周期编号（{@link RateLimiter#epoch()}），
+ * 窗口已经滚动时服务端忽略归还，上一个窗口租出的许可不会计入新窗口。服务端的限流器需要支持 {@link RateLimiter#refund(int)}，
+ * 不支持（{@link RateLimiter#supportsRefund()} 为 false）时服务端拒绝租借，不会租出无法归还的许可。
+ */
+public class LeasingRateLimiter implements RateLimiter, AutoCloseable {
+    private static final int TOKEN_BITS = 40;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final double EWMA_ALPHA = 0.3; // 新样本的权重
+    private static final long MIN_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1); // 采样间隔太短时不更新速率
+
+    private final LimiterClient client;
+    private final String key;
+    private final byte[] encodedKey;
+    private final int maxLease; // 本地最多持有的许可数
+    private final long leaseTtlNanos; // 许可在本地的有效期
+    private final long leaseTimeoutNanos; // 本地许可用完时等待租借的最长时间
+    private final AtomicLong state = new AtomicLong(); // 高 24 位为租约代数，低 40 位为本地剩余许可数
+    private final AtomicReference<CompletableFuture<Integer>> pendingLease = new AtomicReference<>(); // 进行中的租借请求
+    private final AtomicLong returned = new AtomicLong(); // 累计归还服务端的许可数
+    private final LongAdder refunded = new LongAdder(); // 累计本地归还的许可数
+    private volatile HashedWheelTimer.Timeout expiry; // 最近一批许可的过期任务
+    private volatile long heldEpoch; // 本地持有的许可中最早一批租借时服务端的周期编号
+    private volatile int leaseSize = 1; // 下一批租借的许可数
+    // 以下字段只由发起租借的线程和租借完成的回调访问，同一时刻最多一个租借请求
+    private long supplied; // 累计租到的许可数
+    private double rate; // 本地消耗速率的指数加权移动平均，单位为每秒许可数
+    private long lastSampleTime; // 上次采样时间
+    private long lastSampleConsumed; // 上次采样时的累计消耗数
+
+    LeasingRateLimiter(LimiterClient client, String key, int maxLease, Duration leaseTtl, Duration leaseTimeout) {
+        if (maxLease <= 0) {
+            throw new IllegalArgumentException("maxLease must be positive: " + maxLease);
+        }
+        if (leaseTtl.isNegative() || leaseTtl.isZero()) {
+            throw new IllegalArgumentException("leaseTtl must be positive: " + leaseTtl);
+        }
+        if (leaseTimeout.isNegative()) {
+            throw new IllegalArgumentException("leaseTimeout must not be negative: " + leaseTimeout);
+        }
+        this.client = client;
+        this.key = key;
+        this.encodedKey = Protocol.encodeKey(key);
+        this.maxLease = maxLease;
+        this.leaseTtlNanos = leaseTtl.toNanos();
+        this.leaseTimeoutNanos = leaseTimeout.toNanos();
+        this.lastSampleTime = System.nanoTime();
+    }
+
+    public String key() {
+        return key;
+    }
+
+    /**
+     * 从本地许可中扣减；本地许可不够时等待租借请求，合计最多等待 leaseTimeout
+     *
+     * @return false 表示被限流、服务端没有在 leaseTimeout 内返回，或者与服务端的连接已断开
+     */
+    @Override
+    public boolean tryAcquire(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+        if (permits > maxLease) {
+            return false;
+        }
+        if (take(permits)) {
+            return true;
+        }
+        // 本地许可不够，等待租借；租到的许可被其他线程抢先用完而服务端仍有余量时再租一次
+        long deadline = System.nanoTime() + leaseTimeoutNanos;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int granted;
+            try {
+                granted = lease(permits).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (take(permits)) {
+                return true;
+            }
+            if (granted == 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean take(int permits) {
+        for (;;) {
+            long current = state.get();
+            long tokens = current & TOKEN_MASK;
+            if (tokens < permits) {
+                return false;
+            }
+            long remaining = tokens - permits;
+            if (state.compareAndSet(current, (current & ~TOKEN_MASK) | remaining)) {
+                if (remaining < leaseSize / 2) {
+                    lease(0);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 本地剩余的许可数，不访问服务端
+     */
+    @Override
+    public int availablePermits() {
+        return (int) Math.min(Integer.MAX_VALUE, state.get() & TOKEN_MASK);
+    }
+
+    @Override
+    public boolean supportsRefund() {
+        return true;
+    }
+
+    /**
+     * 把许可归还到本地，之后的请求可以继续使用，过期时一起归还服务端
+     */
+    @Override
+    public void refund(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+        refunded.add(permits);
+        state.getAndAdd(permits);
+    }
+
+    /**
+     * 发起租借请求，已经有进行中的请求时返回该请求
+     *
+     * @param atLeast 至少租借的许可数，0 表示按预估的批大小
+     */
+    private CompletableFuture<Integer> lease(int atLeast) {
+        // 已经有进行中的请求时不分配新的 future，许可用完的调用线程在请求返回前不产生垃圾
+        CompletableFuture<Integer> pending = pendingLease.get();
+        if (pending != null) {
+            return pending;
+        }
+        CompletableFuture<Integer> placeholder = new CompletableFuture<>();
+        while (!pendingLease.compareAndSet(null, placeholder)) {
+            pending = pendingLease.get();
+            if (pending != null) {
+                return pending;
+            }
+        }
+        long held = state.get() & TOKEN_MASK;
+        int size = (int) Math.min(Math.max(nextLeaseSize(), atLeast), maxLease - held);
+        if (size <= 0) {
+            pendingLease.set(null);
+            placeholder.complete(0);
+            return placeholder;
+        }
+        client.lease(encodedKey, size).whenComplete((lease, failure) -> {
+            if (failure == null && lease.granted > 0) {
+                grant(lease.granted, lease.epoch);
+            }
+            pendingLease.set(null);
+            if (failure == null) {
+                placeholder.complete(lease.granted);
+            } else {
+                placeholder.completeExceptionally(failure);
+            }
+        });
+        return placeholder;
+    }
+
+    // 根据本地消耗速率计算这一批的大小：约为半个有效期内的消耗量
+    private int nextLeaseSize() {
+        long now = System.nanoTime();
+        long elapsed = now - lastSampleTime;
+        if (elapsed >= MIN_SAMPLE_NANOS) {
+            long consumed = supplied + refunded.sum() - returned.get() - (state.get() & TOKEN_MASK);
+            double sample = (consumed - lastSampleConsumed) * 1e9 / elapsed;
+            rate = rate == 0 ? sample : EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * rate;
+            lastSampleTime = now;
+            lastSampleConsumed = consumed;
+        }
+        int size = (int) Math.min(maxLease, Math.max(1, Math.ceil(rate * leaseTtlNanos / 2e9)));
+        leaseSize = size;
+        return size;
+    }
+
+    // 租到的许可加入本地，开始新一代租约并重新计算过期时间
+    private void grant(int granted, long epoch) {
+        supplied += granted;
+        long generation;
+        for (;;) {
+            long current = state.get();
+            generation = ((current >>> TOKEN_BITS) + 1) & ((1L << (64 - TOKEN_BITS)) - 1);
+            if (state.compareAndSet(current, (generation << TOKEN_BITS) | ((current & TOKEN_MASK) + granted))) {
+                // 本地还有上一批的许可时保留较早的周期编号，归还时宁可被服务端忽略，也不把旧窗口的许可计入新窗口
+                if ((current & TOKEN_MASK) == 0) {
+                    heldEpoch = epoch;
+                }
+                break;
+            }
+        }
+        HashedWheelTimer.Timeout previous = expiry;
+        if (previous != null) {
+            previous.cancel();
+        }
+        long expiringGeneration = generation;
+        expiry = HashedWheelTimer.shared().schedule(() -> expire(expiringGeneration), leaseTtlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // 有效期内没有租到新的一批，剩余的许可归还服务端
+    private void expire(long generation) {
+        for (;;) {
+            // 先读周期编号再清空：与之并发租到的一批只会让归还的周期编号偏早
+            long epoch = heldEpoch;
+            long current = state.get();
+            long tokens = current & TOKEN_MASK;
+            if (current >>> TOKEN_BITS != generation || tokens == 0) {
+                return;
+            }
+            if (state.compareAndSet(current, current & ~TOKEN_MASK)) {
+                giveBack(tokens, epoch);
+                return;
+            }
+        }
+    }
+
+    private void giveBack(long tokens, long epoch) {
+        returned.addAndGet(tokens);
+        while (tokens > 0) {
+            int n = (int) Math.min(tokens, Integer.MAX_VALUE);
+            client.returnLease(encodedKey, n, epoch);
+            tokens -= n;
+        }
+    }
+
+    /**
+     * 把本地剩余的许可全部归还服务端；之后仍可继续使用，会重新租借
+     */
+    @Override
+    public void close() {
+        HashedWheelTimer.Timeout scheduled = expiry;
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+        long epoch = heldEpoch;
+        long current = state.getAndUpdate(s -> s & ~TOKEN_MASK);
+        long tokens = current & TOKEN_MASK;
+        if (tokens > 0) {
+            giveBack(tokens, epoch);
+        }
+    }
+
+    /**
+     * 服务端令牌桶每秒 1000 个许可，两个节点各自租借，合计放行数不超过服务端的许可数
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("=================批量租借许可=================");
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(key -> new TokenBucketLimiter(1000, 1000),
+                Duration.ofMinutes(10), 100_000);
+        try (LimiterServer server = new LimiterServer(limiters);
+             LimiterClient client1 = new LimiterClient(server.address());
+             LimiterClient client2 = new LimiterClient(server.address())) {
+            // 令牌桶在服务端第一次访问 key 时创建，初始没有令牌；先查询一次，等待令牌桶装满
+            client1.availablePermits("api-key-1");
+            Thread.sleep(1100);
+            LeasingRateLimiter node1 = client1.leasingLimiter("api-key-1", 100, Duration.ofMillis(200));
+            LeasingRateLimiter node2 = client2.leasingLimiter("api-key-1", 100, Duration.ofMillis(200));
+            int admitted1 = 0;
+            int admitted2 = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < 1500; i++) {
+                if (node1.tryAcquire()) {
+                    admitted1++;
+                }
+                if (node2.tryAcquire()) {
+                    admitted2++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("3000 个请求耗时 %.1f ms，节点 1 通过 %d 个，节点 2 通过 %d 个\n",
+                    elapsed / 1e6, admitted1, admitted2);
+            System.out.printf("节点 1 本地持有 %d 个许可，节点 2 本地持有 %d 个许可\n",
+                    node1.availablePermits(), node2.availablePermits());
+            // 不再请求，租约过期后本地剩余的许可归还服务端
+            Thread.sleep(300);
+            System.out.printf("租约过期后节点 1 持有 %d 个，节点 2 持有 %d 个，服务端可获取 %d 个\n",
+                    node1.availablePermits(), node2.availablePermits(), client1.availablePermits("api-key-1"));
+        }
+        System.out.println("------------------------------------------");
+    }
+}
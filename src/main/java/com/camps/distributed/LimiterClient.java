@@ -0,0 +1,384 @@
+package com.camps.distributed;
+
+import com.camps.RateLimiter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * 集中式限流服务的客户端
+ * <p>
+ * 一个客户端对应一条 TCP 连接，线程安全，可以被任意多个线程共享：
+ * <ul>
+ *     <li>调用线程只把命令放入无锁队列；发送线程每次取出队列中积压的所有命令（最多 {@value #MAX_COMMANDS_PER_FRAME} 条，
+ *     帧长度不超过 {@link Protocol#MAX_FRAME_SIZE}）编码成一帧发送，并发越高每帧的命令越多，往返次数越少；</li>
+ *     <li>发送线程不等待结果，接收线程按发送顺序把结果对应到命令上，完成返回的 future。</li>
+ * </ul>
+ * 连接断开后，所有未完成和之后提交的命令都以 {@link IOException} 异常结束。
+ */
+public class LimiterClient implements LimiterCommands, AutoCloseable {
+    private static final int MAX_COMMANDS_PER_FRAME = 4096;
+    private static final int[] NO_ARGS = new int[0];
+    private static final byte[] NO_KEY = new byte[0];
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final ConcurrentLinkedQueue<Call> outbound = new ConcurrentLinkedQueue<>(); // 等待发送的命令
+    private final ConcurrentLinkedQueue<Call> inflight = new ConcurrentLinkedQueue<>(); // 已发送、等待结果的命令
+    private final Thread writer; // 发送线程
+    private final Thread reader; // 接收线程
+    private volatile boolean writerIdle; // 发送线程是否因队列为空而挂起
+    private volatile IOException failure; // 连接断开的原因，非 null 表示客户端不可用
+
+    public LimiterClient(InetSocketAddress address) throws IOException {
+        this.channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.writer = new Thread(this::writeLoop, "limiter-client-writer");
+        this.writer.setDaemon(true);
+        this.reader = new Thread(this::readLoop, "limiter-client-reader");
+        this.reader.setDaemon(true);
+        this.writer.start();
+        this.reader.start();
+    }
+
+    /**
+     * 尝试获取 key 的许可，等待服务端返回结果
+     */
+    @Override
+    public boolean tryAcquire(String key, int permits) {
+        return await(call(Protocol.ACQUIRE, Protocol.encodeKey(key), checkPermits(permits))) > 0;
+    }
+
+    /**
+     * 异步获取 key 的许可，future 的值为 true 表示放行
+     */
+    @Override
+    public CompletableFuture<Boolean> tryAcquireAsync(String key, int permits) {
+        return call(Protocol.ACQUIRE, Protocol.encodeKey(key), checkPermits(permits)).thenApply(value -> value > 0);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> tokenBucketAcquireAsync(String key, int permits, int rate, int capacity) {
+        CommandExecutor.checkTokenBucket(permits, rate, capacity);
+        return submit(new Call(Protocol.TOKEN_BUCKET_ACQUIRE, Protocol.encodeKey(key), null, permits,
+                new int[]{rate, capacity})).thenApply(value -> value > 0);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> slidingWindowAcquireAsync(String key, int permits, Duration window, int limit) {
+        int windowMillis = CommandExecutor.toWindowMillis(window);
+        CommandExecutor.checkSlidingWindow(permits, windowMillis, limit);
+        return submit(new Call(Protocol.SLIDING_WINDOW_ACQUIRE, Protocol.encodeKey(key), null, permits,
+                new int[]{windowMillis, limit})).thenApply(value -> value > 0);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> acquireAllAsync(List<String> keys, int permits) {
+        CommandExecutor.checkKeyCount(keys.size());
+        checkPermits(permits);
+        byte[][] encoded = new byte[keys.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = Protocol.encodeKey(keys.get(i));
+        }
+        return submit(new Call(Protocol.ACQUIRE_ALL, encoded[0], encoded, permits, NO_ARGS))
+                .thenApply(value -> value > 0);
+    }
+
+    /**
+     * 查询 key 当前可获取的许可数
+     */
+    public int availablePermits(String key) {
+        return await(call(Protocol.AVAILABLE, Protocol.encodeKey(key), 0));
+    }
+
+    /**
+     * 归还 key 的许可，不等待结果；同一个客户端之后的命令一定在归还之后执行
+     */
+    public void refund(String key, int permits) {
+        call(Protocol.REFUND, Protocol.encodeKey(key), checkPermits(permits));
+    }
+
+    /**
+     * 返回绑定到 key 的 {@link RateLimiter}，可以替换本地限流器使用
+     */
+    public RemoteRateLimiter limiter(String key) {
+        return new RemoteRateLimiter(this, key);
+    }
+
+    /**
+     * 本地许可用完时等待租借最多 leaseTtl
+     */
+    public LeasingRateLimiter leasingLimiter(String key, int maxLease, Duration leaseTtl) {
+        return leasingLimiter(key, maxLease, leaseTtl, leaseTtl);
+    }
+
+    /**
+     * 返回绑定到 key、在本地批量租借许可的 {@link RateLimiter}，见 {@link LeasingRateLimiter}
+     *
+     * @param maxLease     本地最多持有的许可数，即与集中限流相比的最大误差
+     * @param leaseTtl     租到的许可在本地的有效期，过期未用完的许可归还服务端
+     * @param leaseTimeout 本地许可用完时等待租借的最长时间，超时按限流处理
+     */
+    public LeasingRateLimiter leasingLimiter(String key, int maxLease, Duration leaseTtl, Duration leaseTimeout) {
+        return new LeasingRateLimiter(this, key, maxLease, leaseTtl, leaseTimeout);
+    }
+
+    /**
+     * 提交一条命令，future 的值为服务端返回的结果值
+     */
+    CompletableFuture<Integer> call(byte op, byte[] key, int permits) {
+        return submit(new Call(op, key, null, permits, NO_ARGS));
+    }
+
+    /**
+     * 租借许可，结果带上租借前服务端限流器的周期编号
+     */
+    CompletableFuture<Lease> lease(byte[] key, int permits) {
+        Call call = new Call(Protocol.LEASE, key, null, permits, NO_ARGS);
+        return submit(call).thenApply(granted -> new Lease(granted, call.epoch));
+    }
+
+    /**
+     * 归还租借的许可，不等待结果
+     *
+     * @param epoch 租借时的周期编号
+     */
+    void returnLease(byte[] key, int permits, long epoch) {
+        submit(new Call(Protocol.RETURN, key, null, permits, new int[]{(int) (epoch >>> 32), (int) epoch}));
+    }
+
+    /**
+     * @throws IllegalArgumentException 命令编码后超过 {@link Protocol#MAX_COMMAND_SIZE}，一帧也放不下
+     */
+    private CompletableFuture<Integer> submit(Call call) {
+        if (call.size > Protocol.MAX_COMMAND_SIZE) {
+            throw new IllegalArgumentException("command too large: " + call.size + " bytes");
+        }
+        IOException cause = failure;
+        if (cause != null) {
+            call.completeExceptionally(cause);
+            return call;
+        }
+        outbound.offer(call);
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+        // 连接恰好在入队时断开，队列中的命令可能已经错过了清理
+        if (failure != null) {
+            failAll();
+        }
+        return call;
+    }
+
+    /**
+     * 健康检查，服务端不访问限流状态，直接返回
+     */
+    CompletableFuture<Integer> ping() {
+        return call(Protocol.PING, NO_KEY, 0);
+    }
+
+    /**
+     * 连接是否已经断开或关闭，断开后的客户端不能恢复，需要重新创建
+     */
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static int checkPermits(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+        return permits;
+    }
+
+    private void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        Call next = null; // 上一帧放不下、留到下一帧发送的命令
+        try {
+            while (failure == null) {
+                Call call = next != null ? next : outbound.poll();
+                next = null;
+                if (call == null) {
+                    // 先标记再检查一次，避免与提交命令的线程之间漏掉唤醒
+                    writerIdle = true;
+                    if (outbound.isEmpty() && failure == null) {
+                        LockSupport.park(this);
+                    }
+                    writerIdle = false;
+                    continue;
+                }
+                buffer.clear();
+                buffer.position(Protocol.FRAME_HEADER_SIZE);
+                int count = 0;
+                for (;;) {
+                    // 提交时已检查单条命令不超过 MAX_COMMAND_SIZE，帧中的第一条命令一定放得下
+                    if (buffer.position() - 4 + call.size > Protocol.MAX_FRAME_SIZE) {
+                        next = call;
+                        break;
+                    }
+                    buffer = Protocol.ensureCapacity(buffer, call.size);
+                    if (call.keys != null) {
+                        Protocol.putMultiKeyCommand(buffer, call.op, call.keys, call.permits);
+                    } else {
+                        Protocol.putCommand(buffer, call.op, call.key, call.permits, call.args);
+                    }
+                    // 先登记再发送，接收线程收到结果时一定能找到对应的命令
+                    inflight.offer(call);
+                    count++;
+                    if (count == MAX_COMMANDS_PER_FRAME || (call = outbound.poll()) == null) {
+                        break;
+                    }
+                }
+                buffer.putInt(0, buffer.position() - 4).putInt(4, count);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        // 已经从队列中取出、还没有发送的命令不会被 failAll 清理
+        if (next != null) {
+            next.completeExceptionally(failure);
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        try {
+            for (;;) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("connection closed by server");
+                }
+                buffer.flip();
+                while (buffer.remaining() >= Protocol.FRAME_HEADER_SIZE) {
+                    int length = buffer.getInt(buffer.position());
+                    if (buffer.remaining() < 4 + length) {
+                        break;
+                    }
+                    buffer.getInt();
+                    int count = buffer.getInt();
+                    for (int i = 0; i < count; i++) {
+                        byte status = buffer.get();
+                        int value = buffer.getInt();
+                        Call call = inflight.poll();
+                        if (call == null) {
+                            throw new IOException("unexpected result from server");
+                        }
+                        if (status == Protocol.OK && call.op == Protocol.LEASE) {
+                            call.epoch = buffer.getLong();
+                        }
+                        call.complete(status, value);
+                    }
+                }
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    buffer = Protocol.ensureCapacity(buffer, buffer.capacity());
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // 已经在关闭
+        }
+        LockSupport.unpark(writer);
+        failAll();
+    }
+
+    private void failAll() {
+        IOException cause = failure;
+        Call call;
+        while ((call = inflight.poll()) != null) {
+            call.completeExceptionally(cause);
+        }
+        while ((call = outbound.poll()) != null) {
+            call.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * 关闭连接，未完成的命令以异常结束
+     */
+    @Override
+    public void close() {
+        fail(new IOException("client closed"));
+    }
+
+    // 一次租借的结果
+    static final class Lease {
+        final int granted; // 实际租到的许可数
+        final long epoch; // 租借前服务端限流器的周期编号，归还时带上
+
+        Lease(int granted, long epoch) {
+            this.granted = granted;
+            this.epoch = epoch;
+        }
+    }
+
+    // 一条命令及其结果
+    private static final class Call extends CompletableFuture<Integer> {
+        final byte op;
+        final byte[] key; // 单 key 命令的 key，多 key 命令的第一个 key
+        final byte[][] keys; // 多 key 命令的所有 key，单 key 命令为 null
+        final int permits;
+        final int[] args; // 许可数之后的参数
+        final int size; // 编码后的字节数
+        long epoch; // 租借命令的结果附带的周期编号，在完成 future 之前写入
+
+        Call(byte op, byte[] key, byte[][] keys, int permits, int[] args) {
+            this.op = op;
+            this.key = key;
+            this.keys = keys;
+            this.permits = permits;
+            this.args = args;
+            this.size = keys != null ? Protocol.multiKeyCommandSize(keys) : Protocol.commandSize(key, args);
+        }
+
+        void complete(byte status, int value) {
+            if (status == Protocol.OK) {
+                complete(value);
+            } else {
+                completeExceptionally(new IllegalStateException("server rejected command " + op + " for key "
+                        + new String(key, StandardCharsets.UTF_8)));
+            }
+        }
+    }
+}
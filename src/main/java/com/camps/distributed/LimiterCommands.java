@@ -0,0 +1,67 @@
+package com.camps.distributed;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * 集中式限流服务的原子命令
+ * <p>
+ * 每条命令在服务端一次完成读-改-写，相当于 Redis 中的 Lua 脚本：客户端不必先读出状态、计算后再写回，
+ * 没有多个客户端之间读写交错的竞争，每个判断也只需要一次往返。
+ * <ul>
+ *     <li>{@link #tryAcquireAsync}：使用服务端按 key 托管的限流器；</li>
+ *     <li>{@link #tokenBucketAcquireAsync}、{@link #slidingWindowAcquireAsync}：算法参数随命令传入，
+ *     服务端只按 key 保存状态，不需要预先配置；</li>
+ *     <li>{@link #acquireAllAsync}：同时获取多个 key 的许可，全部成功才放行，部分成功时已经获取的许可会被归还。</li>
+ * </ul>
+ * {@link LimiterClient} 把命令发给 {@link LimiterServer} 执行，同时提交的命令合并在同一帧中发送；
+ * {@link LocalLimiterCommands} 在进程内执行同样的逻辑，结果一致，测试时不需要启动服务端。
+ * 参数非法时调用方法时直接抛出 {@link IllegalArgumentException}。
+ */
+public interface LimiterCommands {
+
+    /**
+     * 获取服务端托管的限流器中 key 的许可，future 的值为 true 表示放行
+     */
+    CompletableFuture<Boolean> tryAcquireAsync(String key, int permits);
+
+    /**
+     * 在 key 的令牌桶中获取许可；新的 key 令牌桶是满的
+     *
+     * @param rate     每秒生成的令牌数
+     * @param capacity 令牌桶容量
+     */
+    CompletableFuture<Boolean> tokenBucketAcquireAsync(String key, int permits, int rate, int capacity);
+
+    /**
+     * 在 key 的滑动窗口计数器中获取许可，估算方式与 {@link com.camps.SlidingLimiter.Mode#COUNTER} 相同
+     *
+     * @param window 窗口大小，精确到毫秒
+     * @param limit  窗口内最多放行的许可数
+     */
+    CompletableFuture<Boolean> slidingWindowAcquireAsync(String key, int permits, Duration window, int limit);
+
+    /**
+     * 按顺序获取服务端托管的限流器中每个 key 的许可，全部成功才放行；
+     * 托管的限流器都需要支持归还许可（{@link com.camps.RateLimiter#supportsRefund()}），否则不获取任何许可，返回错误
+     */
+    CompletableFuture<Boolean> acquireAllAsync(List<String> keys, int permits);
+
+    default boolean tryAcquire(String key, int permits) {
+        return LimiterClient.await(tryAcquireAsync(key, permits));
+    }
+
+    default boolean tokenBucketAcquire(String key, int permits, int rate, int capacity) {
+        return LimiterClient.await(tokenBucketAcquireAsync(key, permits, rate, capacity));
+    }
+
+    default boolean slidingWindowAcquire(String key, int permits, Duration window, int limit) {
+        return LimiterClient.await(slidingWindowAcquireAsync(key, permits, window, limit));
+    }
+
+    default boolean acquireAll(List<String> keys, int permits) {
+        return LimiterClient.await(acquireAllAsync(keys, permits));
+    }
+}
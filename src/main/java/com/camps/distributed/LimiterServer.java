@@ -0,0 +1,331 @@
+package com.camps.distributed;
+
+import com.camps.KeyedRateLimiter;
+import com.camps.RateLimiter;
+import com.camps.TimeSource;
+import com.camps.TokenBucketLimiter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Iterator;
+
+
+/**
+ * 集中式限流服务
+ * <p>
+ * 对应 README 中基于 Redis 的中心化限流方案，但不依赖 Redis：限流状态保存在服务端的 {@link KeyedRateLimiter} 中，
+ * 每个 key 使用哪种算法（{@link TokenBucketLimiter}、{@link com.camps.FixedLimiter} 等）由创建它时传入的工厂决定。
+ * 客户端通过 {@link LimiterClient} 访问，协议见 {@link Protocol}。
+ * <ul>
+ *     <li>单个事件循环线程基于 NIO Selector 处理所有连接，命令按到达顺序逐条执行，同一个 key 的判断天然是原子的；</li>
+ *     <li>除了按 key 托管的限流器，还支持参数随命令传入的令牌桶、滑动窗口命令和多 key 命令，
+ *     每条命令在事件循环中一次完成读-改-写，见 {@link LimiterCommands}；</li>
+ *     <li>一帧可以包含任意多条命令，一次系统调用读取多帧、一次写出所有结果，网络往返和系统调用的开销由整帧命令分摊；</li>
+ *     <li>帧长度、命令条数和每条命令都在帧的范围内校验，格式错误的帧只关闭发送它的连接，事件循环继续服务其他连接。</li>
+ * </ul>
+ * 可以绑定 127.0.0.1 的随机端口在测试进程内运行，集成测试不需要外部服务。
+ */
+public class LimiterServer implements AutoCloseable {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final CommandExecutor commands; // 命令的执行逻辑，只由事件循环线程调用
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread eventLoop; // 事件循环线程
+    private volatile boolean running = true;
+
+    /**
+     * 绑定 127.0.0.1 的随机端口
+     */
+    public LimiterServer(KeyedRateLimiter<String> limiters) throws IOException {
+        this(new InetSocketAddress("127.0.0.1", 0), limiters);
+    }
+
+    public LimiterServer(InetSocketAddress address, KeyedRateLimiter<String> limiters) throws IOException {
+        this(address, limiters, TimeSource.SYSTEM);
+    }
+
+    /**
+     * @param timeSource 令牌桶和滑动窗口命令使用的时钟；托管的限流器使用创建时传入的时钟
+     */
+    public LimiterServer(InetSocketAddress address, KeyedRateLimiter<String> limiters, TimeSource timeSource)
+            throws IOException {
+        this.commands = new CommandExecutor(limiters, timeSource);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        this.eventLoop = new Thread(this::run, "limiter-server");
+        this.eventLoop.setDaemon(true);
+        this.eventLoop.start();
+    }
+
+    /**
+     * 实际绑定的地址，绑定随机端口时用于获取端口号
+     */
+    public InetSocketAddress address() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // 连接异常、格式错误的帧和命令执行中的意外异常只关闭该连接，不影响其他连接
+                        closeQuietly(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Thread current = Thread.currentThread();
+            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // 已经在关闭
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // 已经在关闭
+        }
+    }
+
+    /**
+     * 执行一条命令，写入结果；命令格式和结果格式见 {@link Protocol}
+     */
+    void execute(ByteBuffer in, ByteBuffer out) {
+        byte op = in.get();
+        // 先完整读出命令再执行，执行失败时不影响后续命令的解析
+        String[] keys = null;
+        String key = null;
+        if (op == Protocol.ACQUIRE_ALL) {
+            keys = new String[in.getShort() & 0xFFFF];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = Protocol.getKey(in);
+            }
+        } else {
+            key = Protocol.getKey(in);
+        }
+        int permits = in.getInt();
+        int arg1 = 0;
+        int arg2 = 0;
+        if (op == Protocol.TOKEN_BUCKET_ACQUIRE || op == Protocol.SLIDING_WINDOW_ACQUIRE || op == Protocol.RETURN) {
+            arg1 = in.getInt();
+            arg2 = in.getInt();
+        }
+        try {
+            int value;
+            switch (op) {
+                case Protocol.ACQUIRE:
+                    value = commands.acquire(key, permits);
+                    break;
+                case Protocol.AVAILABLE:
+                    value = commands.available(key);
+                    break;
+                case Protocol.REFUND:
+                    commands.refund(key, permits);
+                    value = 0;
+                    break;
+                case Protocol.LEASE:
+                    // 先读周期编号再租借，租借时窗口恰好滚动的许可归还时按旧窗口处理，不会多计入新窗口
+                    long epoch = commands.epoch(key);
+                    value = commands.lease(key, permits);
+                    out.put(Protocol.OK).putInt(value).putLong(epoch);
+                    return;
+                case Protocol.RETURN:
+                    commands.refund(key, permits, (long) arg1 << 32 | (arg2 & 0xFFFFFFFFL));
+                    value = 0;
+                    break;
+                case Protocol.SUPPORTS_REFUND:
+                    value = commands.supportsRefund(key) ? 1 : 0;
+                    break;
+                case Protocol.TOKEN_BUCKET_ACQUIRE:
+                    value = commands.tokenBucketAcquire(key, permits, arg1, arg2) ? 1 : 0;
+                    break;
+                case Protocol.SLIDING_WINDOW_ACQUIRE:
+                    value = commands.slidingWindowAcquire(key, permits, arg1, arg2) ? 1 : 0;
+                    break;
+                case Protocol.ACQUIRE_ALL:
+                    value = commands.acquireAll(keys, permits) ? 1 : 0;
+                    break;
+                case Protocol.PING:
+                    value = 0;
+                    break;
+                default:
+                    out.put(Protocol.ERROR).putInt(op);
+                    return;
+            }
+            out.put(Protocol.OK).putInt(value);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            out.put(Protocol.ERROR).putInt(op);
+        }
+    }
+
+    /**
+     * 关闭服务端，断开所有连接
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        serverChannel.close();
+    }
+
+    // 一个客户端连接的读写缓冲区，只由事件循环线程访问
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // 写模式，未处理的请求
+        private ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // 写模式，未发送的结果
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                closeQuietly(key);
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= Protocol.FRAME_HEADER_SIZE) {
+                int length = in.getInt(in.position());
+                if (length < 4 || length > Protocol.MAX_FRAME_SIZE) {
+                    throw new IOException("invalid frame length: " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                int frameEnd = in.position() + 4 + length;
+                in.getInt();
+                int count = in.getInt();
+                // 每条命令至少 MIN_COMMAND_SIZE 字节，条数受帧长度约束，结果缓冲区不会被一个很大的条数撑大
+                if (count < 0 || count > (length - 4) / Protocol.MIN_COMMAND_SIZE) {
+                    throw new IOException("invalid command count: " + count);
+                }
+                out = Protocol.ensureCapacity(out, Protocol.FRAME_HEADER_SIZE + count * Protocol.RESULT_SIZE);
+                int resultStart = out.position();
+                out.putInt(0).putInt(count);
+                // 在只包含本帧的视图中解析，命令声明的长度与实际不符时不会读到下一帧
+                ByteBuffer frame = in.duplicate();
+                frame.limit(frameEnd);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        out = Protocol.ensureCapacity(out, Protocol.MAX_RESULT_SIZE);
+                        execute(frame, out);
+                    }
+                } catch (BufferUnderflowException e) {
+                    throw new IOException("truncated command", e);
+                }
+                if (frame.position() != frameEnd) {
+                    throw new IOException("malformed frame");
+                }
+                // 租借的结果比其他结果长，执行完才知道帧长度
+                out.putInt(resultStart, out.position() - resultStart - 4);
+                in.position(frameEnd);
+            }
+            in.compact();
+            // 半帧超过缓冲区容量时扩容
+            if (!in.hasRemaining()) {
+                in = Protocol.ensureCapacity(in, in.capacity());
+            }
+            flush();
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            // 没写完时只关注可写事件，暂停读取新的命令，不读取结果的客户端不会让结果缓冲区无限增长；写完后恢复读取
+            int ops = out.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    /**
+     * 在 127.0.0.1 随机端口启动服务端，每个 key 一个令牌桶
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("=================集中式限流服务=================");
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(key -> new TokenBucketLimiter(4, 5),
+                Duration.ofMinutes(10), 100_000);
+        try (LimiterServer server = new LimiterServer(limiters);
+             LimiterClient client = new LimiterClient(server.address())) {
+            System.out.printf("服务端地址: %s\n", server.address());
+            RateLimiter limiter = client.limiter("api-key-1");
+            // 令牌桶在服务端第一次访问 key 时创建，初始没有令牌；先查询一次，等待令牌桶装满
+            System.out.printf("可获取的许可数: %d\n", limiter.availablePermits());
+            Thread.sleep(1500);
+            System.out.printf("1.5 秒后可获取的许可数: %d\n", limiter.availablePermits());
+            for (int i = 0; i < 8; i++) {
+                System.out.printf("第%d个请求%s\n", i + 1, limiter.tryAcquire() ? "通过" : "被限流");
+            }
+        }
+        System.out.println("------------------------------------------");
+    }
+}
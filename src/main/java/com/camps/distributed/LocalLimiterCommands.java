@@ -0,0 +1,113 @@
+package com.camps.distributed;
+
+import com.camps.KeyedRateLimiter;
+import com.camps.ManualTimeSource;
+import com.camps.TimeSource;
+import com.camps.TokenBucketLimiter;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * 在进程内执行 {@link LimiterCommands}，用于测试和单机部署
+ * <p>
+ * 与 {@link LimiterServer} 使用同一份命令实现，结果与通过 {@link LimiterClient} 访问服务端一致；
+ * 服务端的事件循环逐条执行命令，这里用一把锁达到同样的效果。返回的 future 都已经完成。
+ * 传入 {@link ManualTimeSource} 时可以得到确定的结果。
+ */
+public class LocalLimiterCommands implements LimiterCommands {
+    private final CommandExecutor executor;
+    private final ReentrantLock lock = new ReentrantLock(); // 同一时刻只执行一条命令
+
+    public LocalLimiterCommands(KeyedRateLimiter<String> limiters) {
+        this(limiters, TimeSource.SYSTEM);
+    }
+
+    /**
+     * @param timeSource 令牌桶和滑动窗口命令使用的时钟；托管的限流器使用创建时传入的时钟
+     */
+    public LocalLimiterCommands(KeyedRateLimiter<String> limiters, TimeSource timeSource) {
+        this.executor = new CommandExecutor(limiters, timeSource);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> tryAcquireAsync(String key, int permits) {
+        CommandExecutor.checkPermits(permits);
+        lock.lock();
+        try {
+            return CompletableFuture.completedFuture(executor.acquire(key, permits) > 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> tokenBucketAcquireAsync(String key, int permits, int rate, int capacity) {
+        lock.lock();
+        try {
+            return CompletableFuture.completedFuture(executor.tokenBucketAcquire(key, permits, rate, capacity));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> slidingWindowAcquireAsync(String key, int permits, Duration window, int limit) {
+        int windowMillis = CommandExecutor.toWindowMillis(window);
+        lock.lock();
+        try {
+            return CompletableFuture.completedFuture(executor.slidingWindowAcquire(key, permits, windowMillis, limit));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> acquireAllAsync(List<String> keys, int permits) {
+        CommandExecutor.checkKeyCount(keys.size());
+        CommandExecutor.checkPermits(permits);
+        String[] array = keys.toArray(new String[0]);
+        lock.lock();
+        try {
+            return CompletableFuture.completedFuture(executor.acquireAll(array, permits));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void main(String[] args) {
+        System.out.println("=================进程内执行限流命令=================");
+        ManualTimeSource clock = new ManualTimeSource();
+        // 托管的限流器：每个 key 一个每秒 3 个令牌的令牌桶
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(key -> new TokenBucketLimiter(3, 3, clock),
+                Duration.ofMinutes(10), 1000, clock);
+        LimiterCommands commands = new LocalLimiterCommands(limiters, clock);
+        // 令牌桶参数随命令传入：每秒 2 个令牌，容量 2，新的 key 令牌桶是满的
+        for (int i = 0; i < 3; i++) {
+            System.out.printf("令牌桶第%d个请求%s\n", i + 1,
+                    commands.tokenBucketAcquire("user-1", 1, 2, 2) ? "通过" : "被限流");
+        }
+        clock.advance(Duration.ofMillis(500));
+        System.out.printf("0.5 秒后令牌桶请求%s\n", commands.tokenBucketAcquire("user-1", 1, 2, 2) ? "通过" : "被限流");
+        // 滑动窗口：每秒最多 3 个
+        for (int i = 0; i < 4; i++) {
+            System.out.printf("滑动窗口第%d个请求%s\n", i + 1,
+                    commands.slidingWindowAcquire("user-2", 1, Duration.ofSeconds(1), 3) ? "通过" : "被限流");
+        }
+        // 多 key：托管的令牌桶初始没有令牌，先让 tenant-a 和 user-3 各积累 3 个令牌，再让 user-3 用掉 2 个
+        limiters.limiterFor("tenant-a");
+        limiters.limiterFor("user-3");
+        clock.advance(Duration.ofSeconds(1));
+        commands.tryAcquire("user-3", 2);
+        List<String> keys = Arrays.asList("tenant-a", "user-3");
+        for (int i = 0; i < 2; i++) {
+            System.out.printf("同时获取 %s 第%d次%s，tenant-a 剩余 %d 个令牌\n", keys, i + 1,
+                    commands.acquireAll(keys, 1) ? "通过" : "被限流", limiters.limiterFor("tenant-a").availablePermits());
+        }
+        System.out.println("------------------------------------------");
+    }
+}
@@ -0,0 +1,116 @@
+package com.camps.distributed;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * 限流服务的二进制协议
+ * <p>
+ * 客户端与服务端之间传输的都是帧，一帧包含任意多条命令或结果，客户端不必等待上一帧的结果就可以继续发送（流水线）：
+ * <pre>
+ * 请求帧:      | 帧长度 int | 命令数 int | 命令 1 | 命令 2 | ... |
+ * 命令:       | 操作 byte | key 长度 short | key (UTF-8) | 许可数 int | 参数 int ... |
+ * 多 key 命令: | 操作 byte | key 数 short | key 长度 short | key (UTF-8) | ... | 许可数 int |
+ * 结果帧:      | 帧长度 int | 结果数 int | 结果 1 | 结果 2 | ... |
+ * 结果:       | 状态 byte | 值 int |
+ * 租借的结果:  | 状态 byte | 值 int | 周期编号 long |    （仅状态为 OK 时带周期编号）
+ * </pre>
+ * 帧长度不包含自身的 4 个字节。服务端按命令顺序执行并按相同顺序返回结果，客户端按发送顺序对应结果。
+ * 参数的个数由操作决定，只有 {@link #TOKEN_BUCKET_ACQUIRE}、{@link #SLIDING_WINDOW_ACQUIRE} 和 {@link #RETURN} 带两个参数，
+ * {@link #ACQUIRE_ALL} 使用多 key 命令格式。
+ * 结果的值由操作决定：获取许可时 1 表示放行、0 表示限流，查询时为可获取的许可数，租借时为实际租到的许可数，
+ * 查询是否支持归还时 1 表示支持。
+ * 租借的结果另外带上租借前读取的 {@link com.camps.RateLimiter#epoch()}，归还租借的许可时原样发回，
+ * 窗口已经滚动时服务端不把归还的许可计入新窗口。
+ */
+final class Protocol {
+    static final byte ACQUIRE = 1; // 获取许可
+    static final byte AVAILABLE = 2; // 查询可获取的许可数
+    static final byte REFUND = 3; // 归还许可
+    static final byte LEASE = 4; // 租借一批许可，结果值为实际租到的许可数
+    static final byte TOKEN_BUCKET_ACQUIRE = 5; // 按参数中的速率和容量在 key 的令牌桶中获取许可
+    static final byte SLIDING_WINDOW_ACQUIRE = 6; // 按参数中的窗口毫秒数和上限在 key 的滑动窗口中获取许可
+    static final byte ACQUIRE_ALL = 7; // 同时获取多个 key 的许可，全部成功才放行
+    static final byte PING = 8; // 健康检查，不访问限流状态，key 为空
+    static final byte RETURN = 9; // 归还租借的许可，两个参数为租借时的周期编号的高 32 位和低 32 位
+    static final byte SUPPORTS_REFUND = 10; // 查询 key 的限流器是否支持归还许可，结果值 1 表示支持
+
+    static final byte OK = 0; // 执行成功
+    static final byte ERROR = 1; // 参数错误或限流器不支持该操作
+
+    static final int FRAME_HEADER_SIZE = 8; // 帧长度 + 条数
+    static final int RESULT_SIZE = 5; // 状态 + 值
+    static final int MAX_RESULT_SIZE = RESULT_SIZE + 8; // 租借的结果附带周期编号
+    static final int MIN_COMMAND_SIZE = 7; // 最短的命令：操作 + 空 key 或 0 个 key + 许可数
+    static final int MAX_KEY_LENGTH = Short.MAX_VALUE; // key 编码后的最大字节数
+    static final int MAX_KEYS = Short.MAX_VALUE; // 多 key 命令的最大 key 数
+    static final int MAX_FRAME_SIZE = 16 << 20; // 帧的最大字节数
+    static final int MAX_COMMAND_SIZE = MAX_FRAME_SIZE - 4; // 一帧只有这一条命令时命令的最大字节数
+
+    private Protocol() {
+    }
+
+    static byte[] encodeKey(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("key too long: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    static int commandSize(byte[] key, int[] args) {
+        return 1 + 2 + key.length + 4 + 4 * args.length;
+    }
+
+    static void putCommand(ByteBuffer buffer, byte op, byte[] key, int permits, int[] args) {
+        buffer.put(op).putShort((short) key.length).put(key).putInt(permits);
+        for (int arg : args) {
+            buffer.putInt(arg);
+        }
+    }
+
+    static int multiKeyCommandSize(byte[][] keys) {
+        int size = 1 + 2 + 4;
+        for (byte[] key : keys) {
+            size += 2 + key.length;
+        }
+        return size;
+    }
+
+    static void putMultiKeyCommand(ByteBuffer buffer, byte op, byte[][] keys, int permits) {
+        buffer.put(op).putShort((short) keys.length);
+        for (byte[] key : keys) {
+            buffer.putShort((short) key.length).put(key);
+        }
+        buffer.putInt(permits);
+    }
+
+    /**
+     * 读取 key，剩余字节不足时抛出 {@link BufferUnderflowException}，不会越过 buffer 的 limit
+     */
+    static String getKey(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String key = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return key;
+    }
+
+    /**
+     * 容量不足时扩容，保留已写入的内容
+     */
+    static ByteBuffer ensureCapacity(ByteBuffer buffer, int required) {
+        if (buffer.remaining() >= required) {
+            return buffer;
+        }
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + required);
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,76 @@
+package com.camps.distributed;
+
+import com.camps.RateLimiter;
+
+
+/**
+ * 集中式限流服务中一个 key 的限流器
+ * <p>
+ * 与本地限流器实现同一个 {@link RateLimiter} 接口，每次调用都是一次到服务端的请求，多个线程共享同一个
+ * {@link LimiterClient} 时，同时发出的请求会被合并到同一帧中发送。
+ */
+public class RemoteRateLimiter implements RateLimiter {
+    private final LimiterClient client;
+    private final String key;
+    private final byte[] encodedKey; // 预先编码的 key，每次请求不再重复编码
+    private volatile Boolean refundable; // 服务端限流器是否支持归还许可，第一次查询后缓存
+
+    RemoteRateLimiter(LimiterClient client, String key) {
+        this.client = client;
+        this.key = key;
+        this.encodedKey = Protocol.encodeKey(key);
+    }
+
+    public String key() {
+        return key;
+    }
+
+    /**
+     * @throws java.io.UncheckedIOException 与服务端的连接已断开
+     */
+    @Override
+    public boolean tryAcquire(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+        return LimiterClient.await(client.call(Protocol.ACQUIRE, encodedKey, permits)) > 0;
+    }
+
+    @Override
+    public int availablePermits() {
+        return LimiterClient.await(client.call(Protocol.AVAILABLE, encodedKey, 0));
+    }
+
+    /**
+     * 第一次调用时询问服务端该 key 的限流器是否支持归还许可，之后使用缓存的结果
+     *
+     * @throws java.io.UncheckedIOException 与服务端的连接已断开
+     */
+    @Override
+    public boolean supportsRefund() {
+        Boolean supported = refundable;
+        if (supported == null) {
+            supported = LimiterClient.await(client.call(Protocol.SUPPORTS_REFUND, encodedKey, 0)) > 0;
+            refundable = supported;
+        }
+        return supported;
+    }
+
+    /**
+     * 归还许可，等待服务端执行完成
+     *
+     * @throws UnsupportedOperationException 服务端的限流器不支持归还许可
+     * @throws IllegalStateException         服务端执行归还失败
+     * @throws java.io.UncheckedIOException  与服务端的连接已断开
+     */
+    @Override
+    public void refund(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+        if (!supportsRefund()) {
+            throw new UnsupportedOperationException("limiter of " + key + " does not support refund");
+        }
+        LimiterClient.await(client.call(Protocol.REFUND, encodedKey, permits));
+    }
+}
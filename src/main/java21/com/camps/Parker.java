@@ -0,0 +1,47 @@
+package com.camps;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * 阻塞获取许可时挂起当前线程，Java 21 版本
+ * <p>
+ * 等待时间较长时平台线程和虚拟线程都直接挂起。虚拟线程挂起只是从载体线程上卸载，不占用 CPU，
+ * 但定时挂起要向调度器的定时线程提交一个唤醒任务，到期后再重新排队、挂载，开销同样在几十微秒量级。
+ * 等待时间很短时两种线程的处理不同：
+ * <ul>
+ *     <li>平台线程自旋：操作系统定时挂起和唤醒的开销比等待时间本身还长，高速率下会让线程醒得太晚；
+ *     自旋期间调用 {@link Thread#onSpinWait()} 提示 CPU 降低功耗、让出超线程资源；</li>
+ *     <li>虚拟线程反复调用 {@link Thread#yield()}：虚拟线程让出时回到调度器队列的末尾，
+ *     载体线程先执行其他就绪的虚拟线程，没有其他虚拟线程时立即继续；既不独占载体线程，也不经过定时线程。</li>
+ * </ul>
+ * 限流器的状态由 ReentrantLock 保护，锁在挂起前已经释放；ReentrantLock 不会把虚拟线程钉在载体线程上，
+ * 锁竞争时虚拟线程同样被卸载。
+ */
+final class Parker {
+    private static final long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(50); // 短暂等待不挂起的上限
+
+    private Parker() {
+    }
+
+    /**
+     * 挂起当前线程最多 nanos 纳秒；可能因为 unpark、中断或虚假唤醒提前返回，调用方需要重新检查等待条件
+     */
+    static void parkNanos(Object blocker, long nanos) {
+        if (nanos > SPIN_THRESHOLD_NANOS) {
+            LockSupport.parkNanos(blocker, nanos);
+            return;
+        }
+        Thread current = Thread.currentThread();
+        boolean virtual = current.isVirtual();
+        long deadline = System.nanoTime() + nanos;
+        while (deadline - System.nanoTime() > 0 && !current.isInterrupted()) {
+            if (virtual) {
+                Thread.yield();
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.camps;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * 随机的请求序列下，allowBatch / allowEach 与逐个调用 tryAcquire 的结果和限流器状态完全一致
+ */
+class BatchEquivalenceTest {
+    private static final int STEPS = 20_000;
+
+    static Stream<Function<TimeSource, RateLimiter>> limiters() {
+        return Stream.of(
+                clock -> new FixedLimiter(Duration.ofMillis(100), 50, clock),
+                clock -> new SlidingLimiter(Duration.ofMillis(100), 50, SlidingLimiter.Mode.LOG, clock),
+                clock -> new SlidingLimiter(Duration.ofMillis(100), 50, SlidingLimiter.Mode.COUNTER, clock),
+                clock -> new TokenBucketLimiter(300, 50, clock));
+    }
+
+    @ParameterizedTest
+    @MethodSource("limiters")
+    void batchesMatchLoopedTryAcquire(Function<TimeSource, RateLimiter> factory) {
+        for (long seed = 0; seed < 5; seed++) {
+            ManualTimeSource clock = new ManualTimeSource();
+            RateLimiter batched = factory.apply(clock);
+            RateLimiter looped = looped(factory.apply(clock));
+            Random random = new Random(seed);
+            BitSet batchedOut = new BitSet();
+            BitSet loopedOut = new BitSet();
+            for (int step = 0; step < STEPS; step++) {
+                // 大多数步长远小于窗口，偶尔跨过一个或多个窗口
+                clock.advanceNanos(random.nextInt(10) == 0
+                        ? random.nextInt(300_000_000) : random.nextInt(5_000_000));
+                String where = "seed " + seed + " step " + step;
+                switch (random.nextInt(3)) {
+                    case 0:
+                        int n = random.nextInt(40);
+                        assertEquals(looped.allowBatch(n), batched.allowBatch(n), where);
+                        break;
+                    case 1:
+                        long[] costs = new long[random.nextInt(12)];
+                        for (int i = 0; i < costs.length; i++) {
+                            costs[i] = 1 + random.nextInt(random.nextBoolean() ? 3 : 60);
+                        }
+                        assertEquals(looped.allowEach(costs, loopedOut), batched.allowEach(costs, batchedOut), where);
+                        assertEquals(loopedOut, batchedOut, where);
+                        break;
+                    default:
+                        int permits = 1 + random.nextInt(5);
+                        assertEquals(looped.tryAcquire(permits), batched.tryAcquire(permits), where);
+                        break;
+                }
+                assertEquals(looped.availablePermits(), batched.availablePermits(), where);
+            }
+        }
+    }
+
+    // 只转发 tryAcquire 和 availablePermits，批量方法使用接口中逐个调用 tryAcquire 的默认实现
+    private static RateLimiter looped(RateLimiter delegate) {
+        return new RateLimiter() {
+            @Override
+            public boolean tryAcquire(int permits) {
+                return delegate.tryAcquire(permits);
+            }
+
+            @Override
+            public int availablePermits() {
+                return delegate.availablePermits();
+            }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+package com.camps;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class KeyedRateLimiterTest {
+
+    @Test
+    void keysAreLimitedIndependentlyAndExpireWhenIdle() {
+        ManualTimeSource clock = new ManualTimeSource();
+        KeyedRateLimiter<String> limiter = new KeyedRateLimiter<>(key -> new FixedLimiter(Duration.ofHours(1), 1, clock),
+                Duration.ofMinutes(1), 100, clock);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        RateLimiter a = limiter.limiterFor("a");
+        assertSame(a, limiter.limiterFor("a"));
+        clock.advance(Duration.ofMinutes(1));
+        limiter.cleanUp();
+        assertEquals(0, limiter.size());
+        assertNotSame(a, limiter.limiterFor("a"));
+        assertTrue(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedOverMaxEntries() {
+        ManualTimeSource clock = new ManualTimeSource();
+        KeyedRateLimiter<Integer> limiter = new KeyedRateLimiter<>(key -> new FixedLimiter(Duration.ofHours(1), 1, clock),
+                Duration.ofHours(1), 10, clock);
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire(i);
+            clock.advance(Duration.ofSeconds(1));
+        }
+        RateLimiter newest = limiter.limiterFor(9);
+        limiter.tryAcquire(10);
+        assertEquals(9, limiter.size());
+        assertSame(newest, limiter.limiterFor(9));
+    }
+
+    @Test
+    void concurrentInsertsStayWithinCap() throws InterruptedException {
+        int maxEntries = 1000;
+        KeyedRateLimiter<String> limiter = new KeyedRateLimiter<>(key -> new FixedLimiter(Duration.ofSeconds(1), 1),
+                Duration.ofMinutes(10), maxEntries);
+        Thread[] threads = new Thread[8];
+        AtomicInteger maxSeen = new AtomicInteger();
+        for (int t = 0; t < threads.length; t++) {
+            String prefix = "t" + t + "-";
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    limiter.tryAcquire(prefix + i);
+                    maxSeen.accumulateAndGet(limiter.size(), Math::max);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(maxSeen.get() <= maxEntries + threads.length, "size reached " + maxSeen.get());
+    }
+
+    @Test
+    void viewFollowsRecreatedLimiter() {
+        ManualTimeSource clock = new ManualTimeSource();
+        KeyedRateLimiter<String> limiter = new KeyedRateLimiter<>(key -> new FixedLimiter(Duration.ofHours(1), 1, clock),
+                Duration.ofMinutes(1), 100, clock);
+        RateLimiter view = limiter.view("a");
+        assertTrue(view.tryAcquire());
+        assertFalse(limiter.tryAcquire("a"));
+        clock.advance(Duration.ofMinutes(1));
+        limiter.cleanUp();
+        assertEquals(0, limiter.size());
+        // key 被清除后，视图和按 key 访问使用同一个新建的限流器
+        assertTrue(view.tryAcquire());
+        assertFalse(limiter.tryAcquire("a"));
+    }
+}
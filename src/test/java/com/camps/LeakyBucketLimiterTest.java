@@ -0,0 +1,65 @@
+package com.camps;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class LeakyBucketLimiterTest {
+    private final ManualTimeSource clock = new ManualTimeSource();
+
+    /**
+     * 模拟 1 小时的持续负载：漏桶始终是满的，放行速率就是漏出速率
+     */
+    @Test
+    void leakRateDoesNotDriftOverAnHour() {
+        assertSustainedRate(1_000, Duration.ofHours(1));
+    }
+
+    @Test
+    void leakRateDoesNotDriftAtHighRate() {
+        assertSustainedRate(100_000, Duration.ofMinutes(1));
+    }
+
+    private void assertSustainedRate(int rate, Duration duration) {
+        // 请求间隔约为漏出间隔的 0.3 倍且不能整除，每次漏出都留下不足一个请求的余数
+        long interval = TimeUnit.SECONDS.toNanos(1) * 3 / 10 / rate + 7;
+        int capacity = Math.max(10, rate / 10);
+        LeakyBucketLimiter limiter = new LeakyBucketLimiter(rate, capacity, clock);
+        assertTrue(limiter.tryAcquire(capacity));
+        double delivered = RateAccuracyHarness.simulatedRate(limiter, clock, interval, duration);
+        assertEquals(rate, delivered, rate * 1e-4 + 1);
+    }
+
+    @Test
+    void leaksWholeRequestsAndCarriesTheRemainder() {
+        // 每秒 3 个，每 1/9 秒检查一次，每 3 次漏出 1 个
+        LeakyBucketLimiter limiter = new LeakyBucketLimiter(3, 3, clock);
+        assertTrue(limiter.tryAcquire(3));
+        int admitted = 0;
+        for (int i = 0; i < 900; i++) {
+            clock.advanceNanos(TimeUnit.SECONDS.toNanos(1) / 9 + 1);
+            if (limiter.tryAcquire()) {
+                admitted++;
+            }
+        }
+        assertEquals(300, admitted);
+    }
+
+    @Test
+    void reserveWaitsForOverflowToLeak() {
+        LeakyBucketLimiter limiter = new LeakyBucketLimiter(10, 2, clock);
+        assertEquals(0, limiter.reserve(2));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), limiter.reserve(2));
+        // 有超出容量的预约时 tryAcquire 不插队
+        clock.advance(Duration.ofMillis(100));
+        assertFalse(limiter.tryAcquire());
+        limiter.refund(2);
+        assertTrue(limiter.tryAcquire());
+    }
+}
@@ -0,0 +1,77 @@
+package com.camps;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class LeakyBucketShaperTest {
+    private final ManualTimeSource clock = new ManualTimeSource();
+    private final List<Integer> executed = new CopyOnWriteArrayList<>();
+
+    @Test
+    void releasesQueuedTasksOnTheInjectedClock() throws InterruptedException {
+        // 每秒 20 个，间隔 50ms
+        try (LeakyBucketShaper shaper = new LeakyBucketShaper(20, 4, null, clock)) {
+            int accepted = 0;
+            for (int i = 0; i < 6; i++) {
+                int id = i;
+                if (shaper.submit(() -> executed.add(id))) {
+                    accepted++;
+                }
+            }
+            // 第一个任务立即放行，之后队列中最多 4 个
+            assertTrue(accepted >= 4 && accepted <= 5, "accepted " + accepted);
+            awaitExecuted(1);
+            // 时钟不前进，真实时间过去多个间隔也不放行
+            Thread.sleep(200);
+            assertEquals(1, executed.size());
+            clock.advance(Duration.ofMillis(50));
+            awaitExecuted(2);
+            // 时钟一次前进多个间隔，到期的任务一次性放行
+            clock.advance(Duration.ofMillis(150));
+            awaitExecuted(accepted);
+            for (int i = 0; i < accepted; i++) {
+                assertEquals(i, executed.get(i));
+            }
+        }
+    }
+
+    @Test
+    void idleQueueDoesNotAccumulateCredit() throws InterruptedException {
+        try (LeakyBucketShaper shaper = new LeakyBucketShaper(20, 10, null, clock)) {
+            clock.advance(Duration.ofSeconds(10));
+            for (int i = 0; i < 3; i++) {
+                int id = i;
+                assertTrue(shaper.submit(() -> executed.add(id)));
+            }
+            awaitExecuted(1);
+            Thread.sleep(200);
+            assertEquals(1, executed.size());
+            clock.advance(Duration.ofMillis(100));
+            awaitExecuted(3);
+        }
+    }
+
+    @Test
+    void rejectsAfterClose() {
+        LeakyBucketShaper shaper = new LeakyBucketShaper(1, 1, null, clock);
+        shaper.close();
+        assertFalse(shaper.submit(() -> executed.add(0)));
+    }
+
+    private void awaitExecuted(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executed.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, executed.size());
+    }
+}
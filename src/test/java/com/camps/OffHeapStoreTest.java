@@ -0,0 +1,133 @@
+package com.camps;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class OffHeapStoreTest {
+    private final ManualTimeSource clock = new ManualTimeSource();
+
+    @Test
+    void tokenBucketMatchesLockFreeLimiter() {
+        OffHeapTokenBucketStore store = new OffHeapTokenBucketStore(10, 5, 100, clock);
+        LockFreeTokenBucketLimiter reference = new LockFreeTokenBucketLimiter(10, 5, clock);
+        // 新 key 的令牌桶是满的，参照的令牌桶先装满
+        clock.advance(Duration.ofSeconds(1));
+        assertEquals(reference.availablePermits(), store.availablePermits(7));
+        for (int step = 0; step < 200; step++) {
+            clock.advance(Duration.ofMillis(step % 7 * 30));
+            int permits = step % 3 + 1;
+            assertEquals(reference.tryAcquire(permits), store.tryAcquire(7, permits), "step " + step);
+            assertEquals(reference.availablePermits(), store.availablePermits(7), "step " + step);
+        }
+    }
+
+    @Test
+    void evictedTokenBucketComesBackFull() {
+        OffHeapTokenBucketStore store = new OffHeapTokenBucketStore(1, 2, 1, clock);
+        assertTrue(store.tryAcquire(1, 2));
+        assertFalse(store.tryAcquire(2));
+        // key 1 装满后空闲，被 key 2 替换；key 2 装满后又被 key 1 替换，key 1 重新创建时仍然是满的
+        clock.advance(Duration.ofSeconds(2));
+        assertTrue(store.tryAcquire(2, 2));
+        clock.advance(Duration.ofSeconds(2));
+        assertEquals(2, store.availablePermits(1));
+        assertTrue(store.tryAcquire(1, 2));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void admitsEveryNewKeyBelowMaxKeys() {
+        // 时钟不前进，没有可以删除的 key：key 数达到 maxKeys 之前每个新 key 都能插入
+        int maxKeys = 786_000;
+        OffHeapFixedWindowStore store = new OffHeapFixedWindowStore(Duration.ofSeconds(1), 1, maxKeys, clock);
+        int rejected = 0;
+        for (long key = 1; key <= maxKeys; key++) {
+            if (!store.tryAcquire(key)) {
+                rejected++;
+            }
+        }
+        assertEquals(0, rejected);
+        assertEquals(maxKeys, store.size());
+        assertFalse(store.tryAcquire(maxKeys + 1));
+        for (long key = 1; key <= maxKeys; key += 997) {
+            assertEquals(0, store.availablePermits(key));
+        }
+    }
+
+    @Test
+    void fixedWindowLimitsEachKey() {
+        OffHeapFixedWindowStore store = new OffHeapFixedWindowStore(Duration.ofSeconds(1), 3, 100, clock);
+        for (long key : new long[]{0, 1, -1, Long.MIN_VALUE}) {
+            assertTrue(store.tryAcquire(key, 3));
+            assertFalse(store.tryAcquire(key));
+            assertEquals(0, store.availablePermits(key));
+        }
+        assertEquals(3, store.availablePermits(42));
+        clock.advance(Duration.ofSeconds(1));
+        assertTrue(store.tryAcquire(1, 3));
+        assertEquals(4, store.size());
+    }
+
+    @Test
+    void rejectsNewKeysAtMaxKeysAndEvictsIdleKeys() {
+        OffHeapFixedWindowStore store = new OffHeapFixedWindowStore(Duration.ofSeconds(1), 1, 1000, clock);
+        int admitted = 0;
+        for (long key = 0; key < 5000; key++) {
+            if (store.tryAcquire(key)) {
+                admitted++;
+            }
+        }
+        assertEquals(1000, store.size());
+        assertEquals(1000, admitted);
+        // 已有的 key 照常限流，新 key 立即被拒绝
+        assertFalse(store.tryAcquire(1));
+        assertFalse(store.tryAcquire(10_000));
+        assertEquals(1, store.availablePermits(10_000));
+        // 窗口过期后旧 key 被删除，槽位留给新 key，总数不超过 maxKeys；key 0 使用单独的槽位，不会被删除
+        clock.advance(Duration.ofSeconds(1));
+        admitted = 0;
+        for (long key = 10_000; key < 12_000; key++) {
+            if (store.tryAcquire(key)) {
+                admitted++;
+                assertFalse(store.tryAcquire(key));
+            }
+        }
+        assertEquals(999, admitted);
+        assertEquals(1000, store.size());
+        assertEquals(1, store.availablePermits(1));
+    }
+
+    @Test
+    void concurrentInsertsNeverExceedMaxKeys() throws InterruptedException {
+        OffHeapFixedWindowStore store = new OffHeapFixedWindowStore(Duration.ofMillis(1), 1_000_000, 64, clock);
+        AtomicInteger admitted = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    if (store.tryAcquire(i % 256)) {
+                        admitted.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // 时钟不前进，没有槽位可以回收：只有前 64 个 key 能放行
+        assertEquals(64, store.size());
+        int expected = 0;
+        for (long key = 0; key < 256; key++) {
+            expected += 1_000_000 - store.availablePermits(key);
+        }
+        assertEquals(expected, admitted.get());
+    }
+}
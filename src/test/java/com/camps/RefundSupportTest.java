@@ -0,0 +1,182 @@
+package com.camps;
+
+import com.camps.distributed.LocalLimiterCommands;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class RefundSupportTest {
+    private final ManualTimeSource clock = new ManualTimeSource();
+
+    // 只增不减的计数器，不支持归还
+    private static final class CountingLimiter implements RateLimiter {
+        private final int limit;
+        private int used;
+
+        CountingLimiter(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean tryAcquire(int permits) {
+            if (used > limit - permits) {
+                return false;
+            }
+            used += permits;
+            return true;
+        }
+
+        @Override
+        public int availablePermits() {
+            return limit - used;
+        }
+    }
+
+    @Test
+    void builtInLimitersSupportRefund() {
+        RateLimiter[] limiters = {
+                new FixedLimiter(Duration.ofSeconds(1), 1, clock),
+                new SlidingLimiter(Duration.ofSeconds(1), 1, clock),
+                new SlidingLimiter(Duration.ofSeconds(1), 1, SlidingLimiter.Mode.COUNTER, clock),
+                new StripedFixedLimiter(Duration.ofSeconds(1), 1, 1, clock),
+                new TokenBucketLimiter(1, 1, clock),
+                new LockFreeTokenBucketLimiter(1, 1, clock),
+                new LeakyBucketLimiter(1, 1, clock),
+        };
+        for (RateLimiter limiter : limiters) {
+            assertTrue(limiter.supportsRefund(), limiter.getClass().getSimpleName());
+        }
+        assertTrue(new HierarchicalRateLimiter(limiters).supportsRefund());
+        assertFalse(new CountingLimiter(1).supportsRefund());
+        assertThrows(UnsupportedOperationException.class, () -> new CountingLimiter(1).refund(1));
+    }
+
+    @Test
+    void hierarchyRejectsLevelsWithoutRefund() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> new HierarchicalRateLimiter(new TokenBucketLimiter(1, 1, clock), new CountingLimiter(1)));
+        assertTrue(e.getMessage().contains("levels[1]"));
+    }
+
+    @Test
+    void acquireAllChecksRefundBeforeTakingAnyPermit() {
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(
+                key -> key.startsWith("counting") ? new CountingLimiter(5) : new FixedLimiter(Duration.ofSeconds(1), 5, clock),
+                Duration.ofMinutes(1), 100, clock);
+        LocalLimiterCommands commands = new LocalLimiterCommands(limiters, clock);
+        assertThrows(IllegalArgumentException.class, () -> commands.acquireAll(Arrays.asList("fixed", "counting"), 1));
+        assertEquals(5, limiters.limiterFor("fixed").availablePermits());
+        assertEquals(5, limiters.limiterFor("counting").availablePermits());
+        assertTrue(commands.acquireAll(Arrays.asList("fixed", "other"), 5));
+        assertFalse(commands.acquireAll(Arrays.asList("another", "fixed"), 1));
+        assertEquals(5, limiters.limiterFor("another").availablePermits());
+    }
+
+    @Test
+    void fixedWindowIgnoresRefundFromEarlierWindow() {
+        FixedLimiter limiter = new FixedLimiter(Duration.ofSeconds(1), 2, clock);
+        long first = limiter.epoch();
+        assertTrue(limiter.tryAcquire(2));
+        clock.advance(Duration.ofSeconds(1));
+        // 窗口已到期但还没有重置，读到的是下一个窗口的编号
+        long second = limiter.epoch();
+        assertTrue(limiter.tryAcquire(2));
+        limiter.refund(1, first);
+        assertEquals(0, limiter.availablePermits());
+        limiter.refund(1, second);
+        assertEquals(1, limiter.availablePermits());
+    }
+
+    @Test
+    void stripedWindowIgnoresRefundFromEarlierWindow() {
+        StripedFixedLimiter limiter = new StripedFixedLimiter(Duration.ofSeconds(1), 2, 2, clock);
+        long first = limiter.epoch();
+        assertTrue(limiter.tryAcquire(2));
+        clock.advance(Duration.ofSeconds(1));
+        long second = limiter.epoch();
+        assertTrue(limiter.tryAcquire(2));
+        limiter.refund(1, first);
+        assertEquals(0, limiter.availablePermits());
+        limiter.refund(1, second);
+        assertEquals(1, limiter.availablePermits());
+    }
+
+    @Test
+    void slidingLogRemovesTheRefundedRequestNotTheNewest() {
+        SlidingLimiter limiter = new SlidingLimiter(Duration.ofSeconds(1), 2, clock);
+        long first = limiter.epoch();
+        assertTrue(limiter.tryAcquire());
+        clock.advance(Duration.ofMillis(600));
+        long second = limiter.epoch();
+        assertTrue(limiter.tryAcquire());
+        clock.advance(Duration.ofMillis(500));
+        assertTrue(limiter.tryAcquire());
+        // 第一个请求已经滑出窗口，归还被忽略
+        limiter.refund(1, first);
+        assertEquals(0, limiter.availablePermits());
+        // 移除 600ms 的请求，1100ms 的请求仍在窗口内，1700ms 时只有 1 个可用
+        limiter.refund(1, second);
+        assertEquals(1, limiter.availablePermits());
+        clock.advance(Duration.ofMillis(600));
+        assertEquals(1, limiter.availablePermits());
+    }
+
+    @Test
+    void slidingCounterRefundsTheWindowThatWasCharged() {
+        SlidingLimiter limiter = new SlidingLimiter(Duration.ofSeconds(1), 10, SlidingLimiter.Mode.COUNTER, clock);
+        long first = limiter.epoch();
+        assertTrue(limiter.tryAcquire(10));
+        clock.advance(Duration.ofMillis(1500));
+        // 上一个窗口的 10 个按一半计入
+        assertTrue(limiter.tryAcquire(5));
+        assertEquals(0, limiter.availablePermits());
+        // 从上一个窗口扣除 5 个：5 × 0.5 + 5 = 7.5
+        limiter.refund(5, first);
+        assertEquals(2, limiter.availablePermits());
+        clock.advance(Duration.ofSeconds(2));
+        long third = limiter.epoch();
+        assertTrue(limiter.tryAcquire(10));
+        limiter.refund(5, first);
+        assertEquals(0, limiter.availablePermits());
+        limiter.refund(5, third);
+        assertEquals(5, limiter.availablePermits());
+    }
+
+    @Test
+    void hierarchyDoesNotCreditRolledOverWindow() {
+        FixedLimiter fixed = new FixedLimiter(Duration.ofSeconds(1), 1, clock);
+        // 第二级被检查时窗口滚动，新窗口的许可被其他请求用完，然后限流
+        RateLimiter rolling = new RateLimiter() {
+            @Override
+            public boolean tryAcquire(int permits) {
+                clock.advance(Duration.ofSeconds(1));
+                assertTrue(fixed.tryAcquire());
+                return false;
+            }
+
+            @Override
+            public int availablePermits() {
+                return 0;
+            }
+
+            @Override
+            public boolean supportsRefund() {
+                return true;
+            }
+
+            @Override
+            public void refund(int permits) {
+            }
+        };
+        HierarchicalRateLimiter limiter = new HierarchicalRateLimiter(fixed, rolling);
+        assertFalse(limiter.tryAcquire());
+        assertFalse(fixed.tryAcquire());
+    }
+}
@@ -0,0 +1,90 @@
+package com.camps;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class StripedFixedLimiterTest {
+    private final ManualTimeSource clock = new ManualTimeSource();
+
+    @Test
+    void admitsExactlyMaxRequestsAcrossStripes() {
+        StripedFixedLimiter limiter = new StripedFixedLimiter(Duration.ofSeconds(1), 10, 4, clock);
+        // 每个单元 2 ~ 3 个额度，5 个许可需要跨单元凑齐
+        assertTrue(limiter.tryAcquire(5));
+        assertEquals(5, limiter.allowBatch(10));
+        assertFalse(limiter.tryAcquire());
+        assertEquals(0, limiter.availablePermits());
+        clock.advance(Duration.ofSeconds(1));
+        assertEquals(10, limiter.availablePermits());
+        assertTrue(limiter.tryAcquire(10));
+    }
+
+    @Test
+    void refundClearsExhaustedWindow() {
+        StripedFixedLimiter limiter = new StripedFixedLimiter(Duration.ofSeconds(1), 4, 4, clock);
+        assertEquals(4, limiter.allowBatch(4));
+        assertFalse(limiter.tryAcquire());
+        limiter.refund(1);
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    void concurrentThreadsNeverExceedLimit() throws InterruptedException {
+        StripedFixedLimiter limiter = new StripedFixedLimiter(Duration.ofHours(1), 10_000, 8, clock);
+        AtomicInteger admitted = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int permits = t % 2 + 1;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    if (limiter.tryAcquire(permits)) {
+                        admitted.addAndGet(permits);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(10_000 - limiter.availablePermits(), admitted.get());
+        assertTrue(admitted.get() >= 9_999);
+    }
+
+    @Test
+    void transientlyFullCellsDoNotRejectTheRestOfTheWindow() throws InterruptedException {
+        StripedFixedLimiter limiter = new StripedFixedLimiter(Duration.ofHours(1), 64, 8, clock);
+        // 只剩 1 个额度：跨单元获取 2 个许可总是先取到 1 个再归还，单元会暂时全部用完
+        assertEquals(63, limiter.allowBatch(63));
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] spreaders = new Thread[3];
+        for (int t = 0; t < spreaders.length; t++) {
+            spreaders[t] = new Thread(() -> {
+                while (running.get()) {
+                    limiter.tryAcquire(2);
+                }
+            });
+            spreaders[t].start();
+        }
+        for (int i = 0; i < 200_000; i++) {
+            if (limiter.tryAcquire()) {
+                limiter.refund(1);
+            }
+        }
+        running.set(false);
+        for (Thread spreader : spreaders) {
+            spreader.join();
+        }
+        assertEquals(1, limiter.availablePermits());
+        assertTrue(limiter.tryAcquire());
+    }
+}
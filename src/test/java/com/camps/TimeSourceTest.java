@@ -0,0 +1,127 @@
+package com.camps;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * 注入 {@link ManualTimeSource} 后各限流器的结果只取决于时钟前进的时间
+ */
+class TimeSourceTest {
+    private final ManualTimeSource clock = new ManualTimeSource();
+
+    @Test
+    void manualTimeSourceOnlyMovesForward() {
+        clock.advance(Duration.ofMillis(3));
+        clock.advanceNanos(7);
+        assertEquals(3_000_007, clock.nanoTime());
+        assertThrows(IllegalArgumentException.class, () -> clock.advanceNanos(-1));
+    }
+
+    @Test
+    void fixedWindowResetsExactlyAtWindowBoundary() {
+        FixedLimiter limiter = new FixedLimiter(Duration.ofSeconds(1), 3, clock);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        clock.advanceNanos(Duration.ofSeconds(1).toNanos() - 1);
+        assertFalse(limiter.tryAcquire());
+        clock.advanceNanos(1);
+        assertEquals(3, limiter.availablePermits());
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    void slidingLogExpiresEachRequestOneWindowLater() {
+        SlidingLimiter limiter = new SlidingLimiter(Duration.ofSeconds(1), 2, clock);
+        assertTrue(limiter.tryAcquire());
+        clock.advance(Duration.ofMillis(500));
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        // 第一个请求在整整一个窗口之后才过期
+        clock.advance(Duration.ofMillis(500));
+        assertFalse(limiter.tryAcquire());
+        clock.advanceNanos(1);
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    void slidingCounterWeightsPreviousWindowByOverlap() {
+        SlidingLimiter limiter = new SlidingLimiter(Duration.ofSeconds(1), 4, SlidingLimiter.Mode.COUNTER, clock);
+        assertEquals(4, limiter.allowBatch(10));
+        // 1.5 秒时上一个窗口的 4 个请求按一半计入
+        clock.advance(Duration.ofMillis(1500));
+        assertEquals(2, limiter.availablePermits());
+        assertTrue(limiter.tryAcquire(2));
+        assertFalse(limiter.tryAcquire());
+        // 两个窗口之后全部过期
+        clock.advance(Duration.ofSeconds(2));
+        assertEquals(4, limiter.availablePermits());
+    }
+
+    @Test
+    void tokenBucketsRefillFromElapsedNanos() {
+        TokenBucketLimiter locked = new TokenBucketLimiter(10, 10, clock);
+        LockFreeTokenBucketLimiter lockFree = new LockFreeTokenBucketLimiter(10, 10, clock);
+        assertFalse(locked.tryAcquire());
+        assertFalse(lockFree.tryAcquire());
+        clock.advance(Duration.ofMillis(100));
+        assertTrue(locked.tryAcquire());
+        assertTrue(lockFree.tryAcquire());
+        assertFalse(locked.tryAcquire());
+        assertFalse(lockFree.tryAcquire());
+        // 桶满后多余的令牌丢弃
+        clock.advance(Duration.ofSeconds(5));
+        assertEquals(10, locked.availablePermits());
+        assertEquals(10, lockFree.availablePermits());
+    }
+
+    /**
+     * 每秒 3 个令牌，每 500ms 生成 1.5 个令牌，两次之间不足一个令牌的部分不丢失，1 秒共生成 3 个
+     */
+    @Test
+    void tokenBucketsKeepFractionalTokensBetweenRefills() {
+        TokenBucketLimiter locked = new TokenBucketLimiter(3, 10, clock);
+        LockFreeTokenBucketLimiter lockFree = new LockFreeTokenBucketLimiter(3, 10, clock);
+        clock.advance(Duration.ofMillis(500));
+        assertTrue(locked.tryAcquire());
+        assertTrue(lockFree.tryAcquire());
+        clock.advance(Duration.ofMillis(500));
+        assertEquals(2, locked.availablePermits());
+        assertEquals(2, lockFree.availablePermits());
+        assertTrue(locked.tryAcquire(2));
+        assertTrue(lockFree.tryAcquire(2));
+    }
+
+    @Test
+    void leakyBucketLeaksFromElapsedNanos() {
+        LeakyBucketLimiter limiter = new LeakyBucketLimiter(10, 2, clock);
+        assertTrue(limiter.tryAcquire(2));
+        assertFalse(limiter.tryAcquire());
+        clock.advanceNanos(Duration.ofMillis(100).toNanos() - 1);
+        assertFalse(limiter.tryAcquire());
+        clock.advanceNanos(1);
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    void cachedTimeSourceAdvancesInBackground() throws InterruptedException {
+        try (CachedTimeSource cached = new CachedTimeSource(Duration.ofMillis(1))) {
+            long start = cached.nanoTime();
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (cached.nanoTime() == start && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(cached.nanoTime() > start);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.camps;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class TokenBucketLimiterTest {
+    private final ManualTimeSource clock = new ManualTimeSource();
+
+    @Test
+    void keepsFractionalTokensBetweenRefills() {
+        // 每秒 3 个令牌，每 1/9 秒请求一次，每 3 次请求积累 1 个令牌
+        TokenBucketLimiter limiter = new TokenBucketLimiter(3, 10, clock);
+        int admitted = 0;
+        for (int i = 0; i < 900; i++) {
+            clock.advanceNanos(TimeUnit.SECONDS.toNanos(1) / 9 + 1);
+            if (limiter.tryAcquire()) {
+                admitted++;
+            }
+        }
+        assertEquals(300, admitted);
+    }
+
+    @Test
+    void discardsTokensBeyondCapacity() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1000, 5, clock);
+        clock.advance(Duration.ofSeconds(10));
+        assertEquals(5, limiter.allowBatch(100));
+        clock.advanceNanos(999_999);
+        assertFalse(limiter.tryAcquire());
+        clock.advanceNanos(1);
+        assertTrue(limiter.tryAcquire());
+    }
+
+    /**
+     * 请求频率约为令牌生成频率的 3 倍，实际放行速率与配置速率的偏差在 0.01% 以内，另外允许最后不足一个的令牌
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {1_000, 10_000, 100_000, 1_000_000})
+    void deliversConfiguredRateUnderHighQps(int rate) {
+        long interval = TimeUnit.SECONDS.toNanos(1) * 3 / 10 / rate + 7;
+        TokenBucketLimiter limiter = new TokenBucketLimiter(rate, Math.max(10, rate / 10), clock);
+        double delivered = RateAccuracyHarness.simulatedRate(limiter, clock, interval, Duration.ofSeconds(2));
+        assertEquals(rate, delivered, rate * 1e-4 + 1);
+    }
+
+    @Test
+    void shortfallLeavesStateUnchanged() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(100, 500, clock);
+        clock.advance(Duration.ofSeconds(1));
+        assertEquals(400, limiter.tryAcquireOrShortfall(500));
+        assertEquals(100, limiter.availablePermits());
+        assertEquals(0, limiter.tryAcquireOrShortfall(100));
+    }
+}
@@ -0,0 +1,72 @@
+package com.camps.distributed;
+
+import com.camps.FixedLimiter;
+import com.camps.KeyedRateLimiter;
+import com.camps.ManualTimeSource;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class CommandExecutorTest {
+    private final ManualTimeSource clock = new ManualTimeSource();
+
+    private CommandExecutor executor(int maxStates) {
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(key -> new FixedLimiter(Duration.ofSeconds(1), 10, clock),
+                Duration.ofMinutes(10), 1000, clock);
+        return new CommandExecutor(limiters, clock, maxStates);
+    }
+
+    /**
+     * 每秒 3 个令牌，每次前进 111111111 纳秒只生成 0.333333333 个令牌，不足一个令牌的部分累加到下一次，
+     * 三次之后还差 10^-9 个令牌，再前进 1 纳秒才生成 1 个令牌
+     */
+    @Test
+    void tokenBucketKeepsFractionalTokens() {
+        CommandExecutor executor = executor(100);
+        assertTrue(executor.tokenBucketAcquire("a", 1, 3, 1));
+        for (int i = 0; i < 3; i++) {
+            clock.advanceNanos(111_111_111);
+            assertFalse(executor.tokenBucketAcquire("a", 1, 3, 1));
+        }
+        clock.advanceNanos(1);
+        assertTrue(executor.tokenBucketAcquire("a", 1, 3, 1));
+    }
+
+    /**
+     * 1000 万次请求、每次间隔 1 纳秒，速率为每秒 10^8 个令牌时共生成 10^7 × 10^8 / 10^9 = 10^6 个令牌
+     */
+    @Test
+    void tokenBucketAdmitsTheConfiguredRate() {
+        CommandExecutor executor = executor(100);
+        int rate = 100_000_000;
+        assertTrue(executor.tokenBucketAcquire("a", rate, rate, rate));
+        int admitted = 0;
+        for (int i = 0; i < 10_000_000; i++) {
+            clock.advanceNanos(1);
+            if (executor.tokenBucketAcquire("a", 1, rate, rate)) {
+                admitted++;
+            }
+        }
+        assertEquals(1_000_000, admitted);
+    }
+
+    /**
+     * key 数超过上限时移除最久未访问的 key，再次访问时令牌桶重新装满
+     */
+    @Test
+    void evictsTheLeastRecentlyUsedKeyBeyondMaxStates() {
+        CommandExecutor executor = executor(2);
+        assertTrue(executor.tokenBucketAcquire("a", 1, 1, 1));
+        assertTrue(executor.tokenBucketAcquire("b", 1, 1, 1));
+        assertFalse(executor.tokenBucketAcquire("a", 1, 1, 1));
+        // 新建 c 时 b 是最久未访问的 key
+        assertTrue(executor.tokenBucketAcquire("c", 1, 1, 1));
+        assertFalse(executor.tokenBucketAcquire("a", 1, 1, 1));
+        assertTrue(executor.tokenBucketAcquire("b", 1, 1, 1));
+    }
+}
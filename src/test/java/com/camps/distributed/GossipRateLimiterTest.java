@@ -0,0 +1,60 @@
+package com.camps.distributed;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class GossipRateLimiterTest {
+    private static final int LIMIT = 300;
+    private static final long WINDOW_MILLIS = 1000;
+
+    /**
+     * 节点 2、3 都只以节点 1 为种子启动，通过节点 1 转发的成员互相发现，合计放行数不超过全局限额
+     */
+    @Test
+    void nodesSeededFromTheSameSeedDiscoverEachOther() throws Exception {
+        InetSocketAddress loopback = new InetSocketAddress("127.0.0.1", 0);
+        List<GossipRateLimiter> nodes = new ArrayList<>();
+        try {
+            nodes.add(new GossipRateLimiter(loopback, Collections.emptyList(), Duration.ofMillis(WINDOW_MILLIS), LIMIT));
+            List<InetSocketAddress> seeds = Collections.singletonList(nodes.get(0).address());
+            nodes.add(new GossipRateLimiter(loopback, seeds, Duration.ofMillis(WINDOW_MILLIS), LIMIT));
+            nodes.add(new GossipRateLimiter(loopback, seeds, Duration.ofMillis(WINDOW_MILLIS), LIMIT));
+            // 超过启动时按种子数估算的阶段后，每个节点都看到 3 个存活节点
+            Thread.sleep(200);
+            for (GossipRateLimiter node : nodes) {
+                assertEquals(3, node.liveNodes());
+            }
+            // 从下一个窗口开始，每个节点每毫秒请求一次；窗口结束前 50ms 停止，不把下一个窗口的放行算进来
+            long window = System.currentTimeMillis() / WINDOW_MILLIS;
+            while (System.currentTimeMillis() / WINDOW_MILLIS == window) {
+                Thread.sleep(1);
+            }
+            long end = (window + 2) * WINDOW_MILLIS - 50;
+            int total = 0;
+            while (System.currentTimeMillis() < end) {
+                for (GossipRateLimiter node : nodes) {
+                    if (node.tryAcquire()) {
+                        total++;
+                    }
+                }
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            assertTrue(total <= LIMIT, "admitted " + total);
+            assertTrue(total >= LIMIT * 9 / 10, "admitted " + total);
+        } finally {
+            for (GossipRateLimiter node : nodes) {
+                node.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.camps.distributed;
+
+import com.camps.FixedLimiter;
+import com.camps.KeyedRateLimiter;
+import com.camps.ManualTimeSource;
+import com.camps.RateLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class LeasingRateLimiterTest {
+
+    @Test
+    void nodesTogetherAdmitAtMostTheLimit() throws Exception {
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(key -> new FixedLimiter(Duration.ofHours(1), 500),
+                Duration.ofMinutes(10), 1000);
+        try (LimiterServer server = new LimiterServer(limiters);
+             LimiterClient client1 = new LimiterClient(server.address());
+             LimiterClient client2 = new LimiterClient(server.address())) {
+            LeasingRateLimiter node1 = client1.leasingLimiter("api", 50, Duration.ofMillis(100));
+            LeasingRateLimiter node2 = client2.leasingLimiter("api", 50, Duration.ofMillis(100));
+            int admitted = 0;
+            for (int i = 0; i < 1000; i++) {
+                if (node1.tryAcquire()) {
+                    admitted++;
+                }
+                if (node2.tryAcquire(2)) {
+                    admitted += 2;
+                }
+            }
+            assertTrue(admitted > 0 && admitted <= 500, "admitted " + admitted);
+            // 归还本地剩余的许可后，服务端剩余的许可数与放行数合计等于上限
+            node1.close();
+            node2.close();
+            RateLimiter remote = client1.limiter("api");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (remote.availablePermits() != 500 - admitted && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(500 - admitted, remote.availablePermits());
+        }
+    }
+
+    @Test
+    void permitsLeasedInAnEarlierWindowAreNotCreditedToTheNext() throws Exception {
+        ManualTimeSource clock = new ManualTimeSource();
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(key -> new FixedLimiter(Duration.ofSeconds(1), 100, clock),
+                Duration.ofMinutes(10), 1000, clock);
+        try (LimiterServer server = new LimiterServer(limiters);
+             LimiterClient client = new LimiterClient(server.address())) {
+            LeasingRateLimiter node = client.leasingLimiter("api", 50, Duration.ofSeconds(10));
+            // 在第一个窗口租到 5 个许可，放回本地暂不使用
+            assertTrue(node.tryAcquire(5));
+            node.refund(5);
+            assertEquals(5, node.availablePermits());
+            // 窗口滚动后其他请求用满了新窗口
+            clock.advance(Duration.ofSeconds(1));
+            assertTrue(client.tryAcquire("api", 100));
+            // 归还的是上一个窗口租出的许可，不能让新窗口多放行；同一条连接上之后的查询一定在归还之后执行
+            node.close();
+            assertEquals(0, client.availablePermits("api"));
+        }
+    }
+
+    @Test
+    void slowServerFailsClosedAfterLeaseTimeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        // 创建限流器时阻塞服务端的事件循环，模拟服务端无响应
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(key -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new FixedLimiter(Duration.ofHours(1), 10);
+        }, Duration.ofMinutes(10), 1000);
+        try (LimiterServer server = new LimiterServer(limiters);
+             LimiterClient client = new LimiterClient(server.address())) {
+            LeasingRateLimiter limiter = client.leasingLimiter("api", 10, Duration.ofSeconds(10), Duration.ofMillis(100));
+            long start = System.nanoTime();
+            assertFalse(limiter.tryAcquire());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            release.countDown();
+            // 超时的租借请求在后台完成，租到的许可留给之后的请求
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (limiter.availablePermits() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(limiter.tryAcquire());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.camps.distributed;
+
+import com.camps.FixedLimiter;
+import com.camps.KeyedRateLimiter;
+import com.camps.ManualTimeSource;
+import com.camps.TokenBucketLimiter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * 同一串命令分别交给 {@link LocalLimiterCommands} 和通过 {@link LimiterClient} 访问的 {@link LimiterServer}，
+ * 两边共用一个 {@link ManualTimeSource}，每条命令的结果都应该相同
+ */
+class LimiterCommandsEquivalenceTest {
+    private static final String[] HOSTED_KEYS = {"fixed-a", "fixed-b", "bucket-a", "bucket-b"};
+    private static final int STEPS = 5000;
+
+    private ManualTimeSource clock;
+    private LocalLimiterCommands local;
+    private LimiterServer server;
+    private LimiterClient client;
+
+    @BeforeEach
+    void start() throws IOException {
+        clock = new ManualTimeSource();
+        local = new LocalLimiterCommands(hostedLimiters(), clock);
+        server = new LimiterServer(new InetSocketAddress("127.0.0.1", 0), hostedLimiters(), clock);
+        client = new LimiterClient(server.address());
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    // 托管的限流器：fixed- 开头的 key 每秒最多 4 个，bucket- 开头的 key 每秒 3 个令牌、容量 3
+    private KeyedRateLimiter<String> hostedLimiters() {
+        return new KeyedRateLimiter<>(key -> key.startsWith("fixed-")
+                ? new FixedLimiter(Duration.ofSeconds(1), 4, clock)
+                : new TokenBucketLimiter(3, 3, clock), Duration.ofMinutes(10), 1000, clock);
+    }
+
+    /**
+     * 随机的命令和时钟前进交替进行，每条命令等两边都返回后再执行下一步
+     */
+    @Test
+    void randomCommandsMatchOneByOne() throws Exception {
+        Random random = new Random(42);
+        int admitted = 0;
+        for (int step = 0; step < STEPS; step++) {
+            Function<LimiterCommands, CompletableFuture<Boolean>> command = randomCommand(random);
+            boolean expected = command.apply(local).get();
+            assertEquals(expected, command.apply(client).get(5, TimeUnit.SECONDS), "step " + step);
+            if (expected) {
+                admitted++;
+            }
+            if (random.nextInt(4) == 0) {
+                clock.advance(Duration.ofMillis(random.nextInt(200)));
+            }
+        }
+        // 既有通过也有被限流，结果不是平凡的
+        assertTrue(admitted > STEPS / 10 && admitted < STEPS * 9 / 10, "admitted " + admitted);
+    }
+
+    /**
+     * 流水线发送：一批命令不等结果连续提交，合并在少数几帧中，服务端按提交顺序执行
+     */
+    @Test
+    void pipelinedCommandsMatch() throws Exception {
+        Random random = new Random(7);
+        for (int batch = 0; batch < 20; batch++) {
+            List<Function<LimiterCommands, CompletableFuture<Boolean>>> commands = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                commands.add(randomCommand(random));
+            }
+            List<CompletableFuture<Boolean>> remote = new ArrayList<>();
+            for (Function<LimiterCommands, CompletableFuture<Boolean>> command : commands) {
+                remote.add(command.apply(client));
+            }
+            for (int i = 0; i < commands.size(); i++) {
+                assertEquals(commands.get(i).apply(local).get(), remote.get(i).get(5, TimeUnit.SECONDS),
+                        "batch " + batch + " command " + i);
+            }
+            clock.advance(Duration.ofMillis(random.nextInt(500)));
+        }
+    }
+
+    // 托管限流器、令牌桶、滑动窗口、多 key 四种命令之一
+    private static Function<LimiterCommands, CompletableFuture<Boolean>> randomCommand(Random random) {
+        String key = HOSTED_KEYS[random.nextInt(HOSTED_KEYS.length)];
+        int permits = 1 + random.nextInt(3);
+        switch (random.nextInt(4)) {
+            case 0:
+                return commands -> commands.tryAcquireAsync(key, permits);
+            case 1:
+                return commands -> commands.tokenBucketAcquireAsync(key, permits, 5, 4);
+            case 2:
+                return commands -> commands.slidingWindowAcquireAsync(key, permits, Duration.ofSeconds(1), 6);
+            default:
+                List<String> keys = new ArrayList<>(Arrays.asList(HOSTED_KEYS));
+                Collections.shuffle(keys, random);
+                List<String> subset = keys.subList(0, 1 + random.nextInt(keys.size()));
+                return commands -> commands.acquireAllAsync(subset, 1);
+        }
+    }
+}
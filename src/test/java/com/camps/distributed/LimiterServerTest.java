@@ -0,0 +1,224 @@
+package com.camps.distributed;
+
+import com.camps.FixedLimiter;
+import com.camps.KeyedRateLimiter;
+import com.camps.RateLimiter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class LimiterServerTest {
+    private LimiterServer server;
+    private LimiterClient client;
+
+    @BeforeEach
+    void start() throws IOException {
+        // no-refund 开头的 key 使用不支持归还许可的限流器
+        KeyedRateLimiter<String> limiters = new KeyedRateLimiter<>(key -> key.startsWith("no-refund")
+                ? new NoRefundLimiter() : new FixedLimiter(Duration.ofHours(1), 100), Duration.ofMinutes(10), 1000);
+        server = new LimiterServer(limiters);
+        client = new LimiterClient(server.address());
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void admitsExactlyTheLimit() throws Exception {
+        RateLimiter limiter = client.limiter("api");
+        int admitted = 0;
+        for (int i = 0; i < 60; i++) {
+            if (limiter.tryAcquire()) {
+                admitted++;
+            }
+        }
+        // 流水线发送，多条命令合并在同一帧中
+        List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+        for (int i = 0; i < 90; i++) {
+            pending.add(client.tryAcquireAsync("api", 1));
+        }
+        for (CompletableFuture<Boolean> future : pending) {
+            if (future.get(5, TimeUnit.SECONDS)) {
+                admitted++;
+            }
+        }
+        assertEquals(100, admitted);
+        assertEquals(0, limiter.availablePermits());
+    }
+
+    @Test
+    void refundWaitsForTheServer() {
+        RateLimiter limiter = client.limiter("api");
+        assertTrue(limiter.supportsRefund());
+        assertTrue(limiter.tryAcquire(10));
+        limiter.refund(4);
+        // 归还返回时服务端已经执行完成
+        assertEquals(94, limiter.availablePermits());
+    }
+
+    @Test
+    void refundIsRejectedWhenTheServerLimiterDoesNotSupportIt() {
+        RateLimiter limiter = client.limiter("no-refund");
+        assertFalse(limiter.supportsRefund());
+        assertTrue(limiter.tryAcquire());
+        assertThrows(UnsupportedOperationException.class, () -> limiter.refund(1));
+    }
+
+    /**
+     * 连续提交的多条约 6MB 的多 key 命令合在一帧会超过帧长度上限，客户端拆成多帧发送
+     */
+    @Test
+    void largeCommandsAreSplitAcrossFrames() throws Exception {
+        List<String> keys = Collections.nCopies(12000, String.join("", Collections.nCopies(500, "k")));
+        List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            pending.add(client.acquireAllAsync(keys, 1));
+        }
+        // 同一个 key 每小时最多 100 个许可，每条命令都被限流，并且归还了已获取的许可
+        for (CompletableFuture<Boolean> future : pending) {
+            assertFalse(future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(100, client.availablePermits(keys.get(0)));
+    }
+
+    @Test
+    void commandLargerThanAFrameIsRejected() {
+        List<String> keys = Collections.nCopies(Protocol.MAX_KEYS, String.join("", Collections.nCopies(600, "k")));
+        assertThrows(IllegalArgumentException.class, () -> client.acquireAllAsync(keys, 1));
+        assertTrue(client.limiter("other").tryAcquire());
+    }
+
+    @Test
+    void truncatedCommandClosesOnlyThatConnection() throws Exception {
+        // key 声明 100 字节，帧内只有 3 字节
+        ByteBuffer frame = ByteBuffer.allocate(4 + 4 + 1 + 2 + 3);
+        frame.putInt(frame.capacity() - 4).putInt(1).put(Protocol.ACQUIRE).putShort((short) 100).put(new byte[3]);
+        assertRejected(frame);
+    }
+
+    @Test
+    void truncatedKeyDoesNotReadIntoNextFrame() throws Exception {
+        // 第一帧的 key 声明的长度越过帧尾，落在紧随其后的合法帧中
+        ByteBuffer frames = ByteBuffer.allocate(2 * (4 + 4 + 7));
+        frames.putInt(11).putInt(1).put(Protocol.ACQUIRE).putShort((short) 8).putInt(1);
+        frames.putInt(11).putInt(1).put(Protocol.PING).putShort((short) 0).putInt(0);
+        assertRejected(frames);
+    }
+
+    @Test
+    void oversizedCommandCountClosesOnlyThatConnection() throws Exception {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 4 + 7);
+        frame.putInt(11).putInt(Integer.MAX_VALUE / Protocol.RESULT_SIZE).put(Protocol.PING).putShort((short) 0).putInt(0);
+        assertRejected(frame);
+        frame.clear();
+        frame.putInt(11).putInt(-1).put(Protocol.PING).putShort((short) 0).putInt(0);
+        assertRejected(frame);
+    }
+
+    @Test
+    void oversizedFrameLengthClosesOnlyThatConnection() throws Exception {
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        frame.putInt(Protocol.MAX_FRAME_SIZE + 1).putInt(1);
+        assertRejected(frame);
+    }
+
+    /**
+     * 客户端只发送不读取结果时，服务端在结果写不出去后停止读取，发送方被 TCP 流控阻塞，服务端的缓冲区不会无限增长
+     */
+    @Test
+    void stopsReadingFromAClientThatDoesNotReadResults() throws Exception {
+        int commands = 4096;
+        ByteBuffer frame = ByteBuffer.allocate(Protocol.FRAME_HEADER_SIZE + commands * Protocol.MIN_COMMAND_SIZE);
+        frame.putInt(frame.capacity() - 4).putInt(commands);
+        for (int i = 0; i < commands; i++) {
+            frame.put(Protocol.PING).putShort((short) 0).putInt(0);
+        }
+        long written = 0;
+        try (SocketChannel channel = SocketChannel.open(server.address())) {
+            channel.configureBlocking(false);
+            long stalledSince = 0;
+            // 连续 500ms 写不出去视为已被阻塞；服务端一直读取时 64MB 的命令会产生约 45MB 的结果
+            frame.flip();
+            while (written < 64 << 20) {
+                if (!frame.hasRemaining()) {
+                    frame.rewind();
+                }
+                int n = channel.write(frame);
+                if (n > 0) {
+                    written += n;
+                    stalledSince = 0;
+                } else if (stalledSince == 0) {
+                    stalledSince = System.nanoTime();
+                } else if (System.nanoTime() - stalledSince > TimeUnit.MILLISECONDS.toNanos(500)) {
+                    break;
+                } else {
+                    Thread.sleep(10);
+                }
+            }
+        }
+        assertTrue(written < 64 << 20, "server kept reading: " + written + " bytes");
+        client.ping().get(5, TimeUnit.SECONDS);
+        assertTrue(client.limiter("other").tryAcquire());
+    }
+
+    // 用原始连接发送格式错误的帧，服务端关闭该连接，其他客户端照常使用
+    private void assertRejected(ByteBuffer frame) throws Exception {
+        try (Socket socket = new Socket(server.address().getAddress(), server.address().getPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(frame.array(), 0, frame.position());
+            socket.getOutputStream().flush();
+            assertTrue(isClosedByPeer(socket.getInputStream()), "connection should be closed");
+        }
+        client.ping().get(5, TimeUnit.SECONDS);
+        assertTrue(client.limiter("other").tryAcquire());
+    }
+
+    // 每次都放行，不支持归还许可
+    private static final class NoRefundLimiter implements RateLimiter {
+        @Override
+        public boolean tryAcquire(int permits) {
+            return true;
+        }
+
+        @Override
+        public int availablePermits() {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static boolean isClosedByPeer(InputStream in) throws IOException {
+        try {
+            // 丢弃服务端在发现格式错误之前写出的结果
+            byte[] buffer = new byte[256];
+            while (true) {
+                if (in.read(buffer) < 0) {
+                    return true;
+                }
+            }
+        } catch (SocketException e) {
+            return true; // 连接被重置
+        }
+    }
+}